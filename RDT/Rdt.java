@@ -111,8 +111,8 @@ public class Rdt implements Runnable {
 			now = System.nanoTime() - t0;
 			// TODO
 			// if receive buffer has a packet that can be
-			//    delivered, deliver it to sink
-			if (recvBase != expSeqNum) {
+			//    delivered and the sink has room, deliver it
+			if (recvBase != expSeqNum && toSnk.remainingCapacity() > 0) {
 				toSnk.offer(recvBuf[recvBase].payload);
 				recvBase = incr(recvBase);
 			}
@@ -131,7 +131,11 @@ public class Rdt implements Runnable {
 				if (type == 0 /*data packet*/) {
 					Packet ackPkt = new Packet();
 					ackPkt.type = 1;
-					if (lastRcvd == expSeqNum) {
+					// accept it only if the receive buffer
+					// has room, so the sender retransmits
+					// it if the sink is slow
+					if (lastRcvd == expSeqNum &&
+					    diff(expSeqNum, recvBase) < wSize) {
 						ackPkt.seqNum = expSeqNum;
 						recvBuf[expSeqNum] = p;
 						expSeqNum = incr(expSeqNum);
@@ -0,0 +1,222 @@
+/** Load generator for a map server, over the reliable data transport
+ *  or over raw UDP.
+ *  usage: RdtMapClient myIp wSize timeout discProb peerIp peerPort
+ *		[ raw ] [ requests=N ] [ keys=N ] [ get=F ] [ value=N ]
+ *
+ *  The client sends get and put requests for random keys to the server,
+ *  keeping up to wSize of them outstanding, and prints the throughput
+ *  and the latency of the requests (from the first time they are sent
+ *  to their replies) when all of them have been answered.
+ *
+ *  By default, the requests go through an Rdt object, to a RdtMapServer
+ *  started with the same wSize and timeout; the transport recovers the
+ *  lost packets, and delivers the replies in order. With raw, they are
+ *  sent as plain UDP packets, to a MapServer (see UDP Map), with a tag
+ *  ("<n>#get:k") that identifies the reply; the client drops packets
+ *  with the same probability as the substrate, and sends a request again
+ *  if it gets no reply within the timeout, as MapClient does. Running
+ *  both with the same discProb compares the two ways to recover from
+ *  losses.
+ *
+ *  myIp	is the IP address to be bound to the client's socket
+ *  wSize	is the number of outstanding requests, and the window size
+ *		of the protocol
+ *  timeout	is the time waited before re-sending a packet (or a request,
+ *		with raw), as a floating point value in seconds
+ *  discProb	is the probability that a request packet (or an ack) gets
+ *		discarded; with raw, replies are discarded with the same
+ *		probability, as the server's substrate would
+ *  requests	is the number of requests sent (default 100000)
+ *  keys	is the number of distinct keys (default 1000)
+ *  get		is the fraction of gets, the rest being puts (default 0.9)
+ *  value	is the length of the values put (default 16)
+ */
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RdtMapClient {
+	private static int requests = 100000, keys = 1000, valueLen = 16;
+	private static double getRatio = 0.9;
+	private static Random rand = new Random();
+	private static String value;
+
+	/** Return a random request. */
+	private static String request() {
+		String key = "key" + rand.nextInt(keys);
+		return rand.nextDouble() < getRatio ? "get:" + key
+			: "put:" + key + ":" + value;
+	}
+
+	/** Check that a reply is one of those of the map protocol. */
+	private static boolean valid(String reply) {
+		return reply.startsWith("ok:") || reply.equals("no match")
+			|| reply.equals("Ok") || reply.startsWith("updated:");
+	}
+
+	/** Send the requests through rdt, and record their latencies in
+	 *  lat (ns); return the number of invalid replies.
+	 */
+	private static int runRdt(Rdt rdt, int wSize, long[] lat)
+							throws Exception {
+		long[] sent = new long[requests];
+		Semaphore window = new Semaphore(wSize);
+		Thread sender = new Thread(() -> {
+			for (int i = 0; i < requests; i++) {
+				window.acquireUninterruptibly();
+				String r = request();
+				sent[i] = System.nanoTime();
+				rdt.send(r);
+			}
+		});
+		sender.start();
+		int errors = 0;
+		// replies come in the order of the requests
+		for (int i = 0; i < requests; i++) {
+			String reply = rdt.receive();
+			lat[i] = System.nanoTime() - sent[i];
+			window.release();
+			if (!valid(reply)) errors++;
+		}
+		sender.join();
+		return errors;
+	}
+
+	/** A request waiting for its reply. */
+	private static class Outstanding {
+		byte[] msg;
+		long first, last;	// times it was sent first and last
+	}
+
+	/** Send the requests as raw UDP packets, and record their latencies
+	 *  in lat (ns); return the number of invalid replies.
+	 */
+	private static int runRaw(DatagramSocket sock, int wSize, long timeout,
+			double discProb, long[] lat) throws Exception {
+		// oldest (last) transmission first
+		LinkedHashMap<Integer, Outstanding> out = new LinkedHashMap<>();
+		byte[] buf = new byte[2000];
+		DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+		sock.setSoTimeout(1);
+		int next = 0, done = 0, errors = 0;
+		while (done < requests) {
+			// send new requests while the window has room
+			while (out.size() < wSize && next < requests) {
+				Outstanding o = new Outstanding();
+				o.msg = (next + "#" + request()).getBytes("US-ASCII");
+				o.first = o.last = System.nanoTime();
+				out.put(next++, o);
+				if (rand.nextDouble() >= discProb)
+					sock.send(new DatagramPacket(o.msg,
+							o.msg.length));
+			}
+			// receive a reply, unless it is dropped
+			try {
+				pkt.setData(buf);
+				sock.receive(pkt);
+				String s = new String(buf, 0, pkt.getLength(),
+						      "US-ASCII");
+				int hash = s.indexOf('#');
+				if (rand.nextDouble() >= discProb && hash > 0) {
+					int tag = Integer.parseInt(s.substring(0, hash));
+					Outstanding o = out.remove(tag);
+					if (o != null) { // else a duplicate
+						lat[tag] = System.nanoTime() - o.first;
+						if (!valid(s.substring(hash + 1)))
+							errors++;
+						done++;
+					}
+				}
+			} catch(SocketTimeoutException e) {
+				// check for requests to send again
+			}
+			// send again the requests whose timer has expired
+			long now = System.nanoTime();
+			Iterator<Map.Entry<Integer, Outstanding>> it =
+						out.entrySet().iterator();
+			ArrayList<Map.Entry<Integer, Outstanding>> again =
+						new ArrayList<>();
+			while (it.hasNext()) {
+				Map.Entry<Integer, Outstanding> e = it.next();
+				if (now - e.getValue().last < timeout) break;
+				it.remove();
+				again.add(e);
+			}
+			for (Map.Entry<Integer, Outstanding> e : again) {
+				Outstanding o = e.getValue();
+				o.last = now;
+				out.put(e.getKey(), o);
+				if (rand.nextDouble() >= discProb)
+					sock.send(new DatagramPacket(o.msg,
+							o.msg.length));
+			}
+		}
+		return errors;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 6) {
+			System.out.println("usage: RdtMapClient myIp wSize "
+				+ "timeout discProb peerIp peerPort [ raw ] "
+				+ "[ requests=N ] [ keys=N ] [ get=F ] "
+				+ "[ value=N ]");
+			System.exit(1);
+		}
+		InetAddress myIp = InetAddress.getByName(args[0]);
+		int wSize = Integer.parseInt(args[1]);
+		double timeout = Double.parseDouble(args[2]);
+		double discProb = Double.parseDouble(args[3]);
+		InetSocketAddress peerAdr = new InetSocketAddress(args[4],
+					Integer.parseInt(args[5]));
+		boolean raw = false;
+		for (int i = 6; i < args.length; i++) {
+			String[] kv = args[i].split("=");
+			if (kv[0].equals("raw")) raw = true;
+			else if (kv[0].equals("requests"))
+				requests = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("keys"))
+				keys = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("get"))
+				getRatio = Double.parseDouble(kv[1]);
+			else if (kv[0].equals("value"))
+				valueLen = Integer.parseInt(kv[1]);
+			else {
+				System.out.println("RdtMapClient: unknown "
+						   + "option " + args[i]);
+				System.exit(1);
+			}
+		}
+		char[] v = new char[valueLen];
+		Arrays.fill(v, 'v');
+		value = new String(v);
+
+		long[] lat = new long[requests];
+		long t0 = System.nanoTime();
+		int errors;
+		if (raw) {
+			DatagramSocket sock = new DatagramSocket(0, myIp);
+			sock.connect(peerAdr);
+			errors = runRaw(sock, wSize, (long) (timeout * 1e9),
+					discProb, lat);
+		} else {
+			Substrate sub = new Substrate(myIp, 0, peerAdr,
+						      discProb, false);
+			sub.start();
+			Rdt rdt = new Rdt(wSize, timeout, sub);
+			rdt.start();
+			errors = runRdt(rdt, wSize, lat);
+		}
+		double secs = (System.nanoTime() - t0) / 1e9;
+
+		Arrays.sort(lat);
+		System.out.printf("%s: %d requests in %.2f s: %.0f requests/sec, "
+			+ "%d errors%n", raw ? "raw" : "rdt", requests, secs,
+			requests / secs, errors);
+		System.out.printf("latency (us): p50 %d p99 %d p999 %d max %d%n",
+			lat[requests / 2] / 1000, lat[requests * 99 / 100] / 1000,
+			lat[requests * 999 / 1000] / 1000,
+			lat[requests - 1] / 1000);
+		System.exit(0);
+	}
+}
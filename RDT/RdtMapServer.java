@@ -0,0 +1,98 @@
+/** Map server over the reliable data transport.
+ *  usage: RdtMapServer myIp myPort wSize timeout [ discProb ]
+ *
+ *  The server keeps a set of (key, value) pairs, and answers the
+ *  requests of the map protocol of MapServer (see UDP Map)
+ *	get:k		- replies "ok:v", or "no match"
+ *	put:k:v		- replies "Ok", or "updated:k" if k was present
+ *	remove:k	- replies "Ok", or "no match"
+ *  but the requests and replies go through an Rdt object instead of
+ *  raw UDP packets, so none of them is lost, and they arrive in order:
+ *  the client may send many requests without waiting for their replies,
+ *  up to the window size, and needs neither tags nor retransmissions.
+ *
+ *  The Rdt protocol connects two hosts, so the server serves a single
+ *  client, the first one to send it a packet. It stops when nothing has
+ *  been received for a few seconds (see Substrate), and prints the
+ *  number of requests served.
+ *
+ *  myIp	is the IP address to be bound to the server's socket
+ *  myPort	is the port number to be bound to the server's socket
+ *  wSize	is the window size to be used by the protocol (in packets);
+ *		should be the same as the client's
+ *  timeout	is the time that the protocol waits before re-sending a packet
+ *		(expressed as a floating point value in seconds)
+ *  discProb	is the probability that a reply packet (or an ack) gets
+ *		discarded, to test the recovery from losses; default is 0
+ */
+
+import java.net.*;
+import java.util.concurrent.*;
+
+public class RdtMapServer implements Runnable {
+	// longest reply that fits in a packet (see Packet)
+	private static final int MAX_REPLY = 1400 - 3;
+
+	private ConcurrentHashMap<String, String> map =
+						new ConcurrentHashMap<>();
+	private Rdt rdt;
+	private volatile long served = 0;	// requests served so far
+
+	RdtMapServer(Rdt rdt) { this.rdt = rdt; }
+
+	/** Return the reply to a request. */
+	String process(String request) {
+		String[] op = request.split(":", 3);
+		if (op[0].equals("get") && op.length == 2) {
+			String v = map.get(op[1]);
+			return v != null ? "ok:" + v : "no match";
+		} else if (op[0].equals("put") && op.length == 3) {
+			return map.put(op[1], op[2]) != null ?
+				"updated:" + op[1] : "Ok";
+		} else if (op[0].equals("remove") && op.length == 2) {
+			return map.remove(op[1]) != null ? "Ok" : "no match";
+		}
+		return "Error:unrecognizable input:" + request;
+	}
+
+	/** Serve the requests, one at a time, in the order they arrive. */
+	public void run() {
+		while (true) {
+			String reply = process(rdt.receive());
+			if (reply.length() > MAX_REPLY)
+				reply = "Error:reply too long";
+			rdt.send(reply);
+			served++;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.out.println("usage: RdtMapServer myIp myPort "
+				+ "wSize timeout [ discProb ]");
+			System.exit(1);
+		}
+		InetAddress myIp = InetAddress.getByName(args[0]);
+		int myPort = Integer.parseInt(args[1]);
+		int wSize = Integer.parseInt(args[2]);
+		double timeout = Double.parseDouble(args[3]);
+		double discProb = 0;
+		if (args.length > 4) discProb = Double.parseDouble(args[4]);
+
+		// the peer is the first client to send a packet
+		Substrate sub = new Substrate(myIp, myPort, null,
+					      discProb, false);
+		sub.start();
+		Rdt rdt = new Rdt(wSize, timeout, sub);
+		rdt.start();
+		RdtMapServer server = new RdtMapServer(rdt);
+		Thread t = new Thread(server);
+		t.setDaemon(true);
+		t.start();
+		// wait for the substrate to go idle
+		sub.join();
+		System.out.println("RdtMapServer: served " + server.served
+				   + " requests, " + server.map.size() + " pairs");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,115 @@
+/* Binary.java
+ *
+ * Description: The binary protocol of TcpMapServer, an alternative to
+ * the text one for clients that want values holding ':' or newlines, or
+ * less parsing. A connection switches to it by sending the text command
+ * "binary" and waiting for the reply "Ok" (a server without it replies
+ * with an error, and the client goes on in text). From then on, every
+ * request is a frame
+ *	op (1 byte), key length (4 bytes), key, value length (4 bytes), value
+ * with op GET, PUT, REMOVE or END (which closes the connection), the
+ * lengths in network order, and an empty value except for PUT; every
+ * reply is
+ *	status (1 byte), value length (4 bytes), value
+ * with status OK, UPDATED (a put of a key that was present), NO_MATCH or
+ * ERROR (the value being the message), and the value of the key for a
+ * GET that found it. Keys and values are any bytes. A request frame is
+ * at most MAX_FRAME bytes; a longer one gets an error, and the
+ * connection is closed. A GET of a value too long for a reply frame
+ * (which a text put can store) gets an error. Requests may be pipelined,
+ * as in text.
+ *
+ * The frames are decoded in place, in the buffer they were read into: a
+ * key is looked up through a probe key pointing into it, so a request
+ * creates no String, and a get or remove no object at all.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+public class Binary {
+	// Operations of the requests
+	public static final byte END = 0, GET = 1, PUT = 2, REMOVE = 3;
+	// Statuses of the replies
+	public static final byte OK = 0, UPDATED = 1, NO_MATCH = 2, ERROR = 3;
+	// Sizes of the op and lengths of a request, and of the status and
+	// length of a reply
+	public static final int HEADER = 9, REPLY_HEADER = 5;
+	// Longest request frame
+	public static final int MAX_FRAME = EventLoop.MAX_LINE;
+
+	// Results of process()
+	public static final int INPUT = 0;	// needs more input
+	public static final int OUTPUT = 1;	// needs more room for replies
+	public static final int CLOSE = 2;	// close the connection
+
+	private static final byte[] TOO_LONG =
+		"frame too long".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] BAD_OP =
+		"unknown operation".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] VALUE_TOO_LONG =
+		"value too long".getBytes(StandardCharsets.US_ASCII);
+
+	// Process the complete frames in "in", from its position to its
+	// limit, on map, and put their replies in out; in's position is left
+	// at the first frame not processed, which is incomplete (INPUT), or
+	// has a reply that does not fit in out (OUTPUT), or follows an END
+	// (CLOSE). A reply always fits in an empty out of MAX_FRAME bytes.
+	public static int process(ByteBuffer in, ByteBuffer out, ByteKey probe,
+			ConcurrentNavigableMap<ByteKey, byte[]> map) {
+		byte[] buf = in.array();
+		while (true) {
+			int p = in.position();
+			if (in.remaining() < HEADER) return INPUT;
+			if (out.remaining() < REPLY_HEADER + BAD_OP.length)
+				return OUTPUT;
+			byte op = in.get(p);
+			int klen = in.getInt(p + 1);
+			if (klen < 0 || klen > MAX_FRAME - HEADER)
+				return tooLong(out);
+			if (in.remaining() < HEADER + klen) return INPUT;
+			int vlen = in.getInt(p + 5 + klen);
+			if (vlen < 0 || vlen > MAX_FRAME - HEADER - klen)
+				return tooLong(out);
+			if (in.remaining() < HEADER + klen + vlen) return INPUT;
+
+			int koff = in.arrayOffset() + p + 5;
+			int voff = koff + klen + 4;
+			probe.set(buf, koff, klen);
+			if (op == GET) {
+				byte[] v = map.get(probe);
+				if (v == null) {
+					out.put(NO_MATCH).putInt(0);
+				} else if (REPLY_HEADER + v.length > MAX_FRAME) {
+					// put in text, never fits in a reply
+					out.put(ERROR).putInt(VALUE_TOO_LONG.length)
+					   .put(VALUE_TOO_LONG);
+				} else if (out.remaining() < REPLY_HEADER + v.length) {
+					return OUTPUT;
+				} else {
+					out.put(OK).putInt(v.length).put(v);
+				}
+			} else if (op == PUT) {
+				byte[] v = Arrays.copyOfRange(buf, voff, voff + vlen);
+				out.put(map.put(probe.copy(), v) != null ?
+					UPDATED : OK).putInt(0);
+			} else if (op == REMOVE) {
+				out.put(map.remove(probe) != null ?
+					OK : NO_MATCH).putInt(0);
+			} else if (op == END) {
+				in.position(p + HEADER + klen + vlen);
+				return CLOSE;
+			} else {
+				out.put(ERROR).putInt(BAD_OP.length).put(BAD_OP);
+			}
+			in.position(p + HEADER + klen + vlen);
+		}
+	}
+
+	private static int tooLong(ByteBuffer out) {
+		out.put(ERROR).putInt(TOO_LONG.length).put(TOO_LONG);
+		return CLOSE;
+	}
+}
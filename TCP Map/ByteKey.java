@@ -0,0 +1,75 @@
+/* ByteKey.java
+ *
+ * Description: A key of TcpMapServer, made of a range of bytes.
+ * Keys stored in the map own their bytes. The binary protocol looks keys
+ * up with a reusable "probe" key that points into the buffer the request
+ * was read into, so that no String (or any other object) is created for
+ * a lookup. Keys are ordered by comparing their bytes, as unsigned values,
+ * in lexicographic order, which is the order of Strings for ASCII keys.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ByteKey implements Comparable<ByteKey> {
+	private byte[] buf;	// bytes of the key are buf[off..off+len)
+	private int off;
+	private int len;
+
+	// Create an empty key, to be used as a probe
+	public ByteKey() { set(new byte[0], 0, 0); }
+
+	// Create a key from a String of ASCII characters
+	public ByteKey(String s) {
+		byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+		set(b, 0, b.length);
+	}
+
+	// Point this key at a range of bytes (not copied)
+	// Return this key
+	public ByteKey set(byte[] buf, int off, int len) {
+		this.buf = buf; this.off = off; this.len = len;
+		return this;
+	}
+
+	// Return a key that owns a private copy of this key's bytes
+	public ByteKey copy() {
+		return new ByteKey().set(Arrays.copyOfRange(buf, off, off + len),
+					 0, len);
+	}
+
+	public int length() { return len; }
+
+	// Copy the key bytes into out at pos
+	// Return the position following the copied bytes
+	public int copyTo(byte[] out, int pos) {
+		System.arraycopy(buf, off, out, pos, len);
+		return pos + len;
+	}
+
+	@Override
+	public int compareTo(ByteKey k) {
+		return Arrays.compareUnsigned(buf, off, off + len,
+					      k.buf, k.off, k.off + k.len);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = 1;
+		for (int i = off; i < off + len; i++) h = 31 * h + buf[i];
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ByteKey)) return false;
+		ByteKey k = (ByteKey) o;
+		return Arrays.equals(buf, off, off + len,
+				     k.buf, k.off, k.off + k.len);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, off, len, StandardCharsets.US_ASCII);
+	}
+}
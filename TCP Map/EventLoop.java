@@ -0,0 +1,329 @@
+/* EventLoop.java
+ *
+ * Description: An event loop of TcpMapServer, which serves many
+ * connections from a single thread. The connections are non-blocking
+ * SocketChannels registered with a Selector; when one of them is
+ * readable, the loop reads what has arrived, splits it into lines,
+ * processes every complete command (see TcpMapServer.processOperation)
+ * and writes all their replies at once. A line that is not complete is
+ * kept until the rest of it arrives.
+ *
+ * Memory per connection is kept small, so that thousands of idle
+ * connections cost little: the buffers for reading and replying belong
+ * to the loop, and a connection only keeps the piece of a line it has
+ * not finished sending, and the replies the socket did not accept. The
+ * commands read at once are replied to in batches of about MAX_REPLIES
+ * bytes of replies (the commands after a batch are kept, unprocessed,
+ * until it is sent), and a connection with replies waiting is not read
+ * until they are sent, so a client that does not read its replies cannot
+ * make the server buffer an unbounded amount of them.
+ *
+ * The reply to "get all" is generated a chunk at a time, each one when
+ * the socket has taken the previous one, so it takes little memory
+ * however large the map; the commands that follow it on the connection
+ * wait until it is complete, so the replies stay in order.
+ *
+ * A connection that switches to the binary protocol (see Binary) has its
+ * frames decoded in place, in the buffer of the loop.
+ *
+ * As in the blocking server, a blank line (or the end of the stream)
+ * closes the connection; so does a line longer than MAX_LINE, after an
+ * error reply, and a request that fails with an exception, after the
+ * replies to the requests before it and an "internal error" reply (as
+ * much of them as the socket takes at once).
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class EventLoop implements Runnable {
+	// Longest command accepted, in bytes
+	public static final int MAX_LINE = 1 << 20;
+	// Replies prepared at once, in bytes, before the next commands wait
+	private static final int MAX_REPLIES = 1 << 16;
+
+	/** State of a connection. */
+	private static class Conn {
+		byte[] partial;		// start of an incomplete line, or null
+		boolean unread;		// partial may hold complete lines
+		ByteBuffer pending;	// replies not sent yet, or null
+		// rest of the pairs of a get all being sent, or null
+		Iterator<Map.Entry<ByteKey, byte[]>> all;
+		boolean binary;		// in the binary protocol
+		boolean closing;	// close once pending is sent
+	}
+
+	private Selector selector;
+	// connections accepted, waiting to be registered by the loop
+	private ConcurrentLinkedQueue<SocketChannel> added =
+					new ConcurrentLinkedQueue<>();
+
+	private ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+	private byte[] out = new byte[1 << 16];	// replies being prepared
+	private int outLen = 0;
+	private static final byte[] INTERNAL =
+		"internal error".getBytes(StandardCharsets.US_ASCII);
+	private StringBuilder chunk = new StringBuilder(); // of a get all
+	private ByteKey probe = new ByteKey();	// key of a binary request
+
+	private volatile int connections = 0;	// connections served now
+
+	EventLoop() throws IOException { selector = Selector.open(); }
+
+	/** Hand a new connection to the loop; may be called by any thread. */
+	public void add(SocketChannel ch) {
+		added.add(ch);
+		selector.wakeup();
+	}
+
+	/** Return the number of connections served by the loop. */
+	public int connections() { return connections; }
+
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+				SocketChannel ch;
+				while ((ch = added.poll()) != null) {
+					ch.configureBlocking(false);
+					ch.register(selector, SelectionKey.OP_READ,
+						    new Conn());
+					connections++;
+				}
+				Iterator<SelectionKey> it =
+					selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if (key.isReadable()) read(key);
+						else if (key.isWritable()) write(key);
+					} catch(IOException e) {
+						close(key); // reset by the client
+					} catch(RuntimeException e) {
+						System.err.println("EventLoop:run: " + e);
+						fail(key);
+					}
+				}
+			} catch(IOException e) {
+				System.err.println("EventLoop:run: " + e);
+			}
+		}
+	}
+
+	/** Read what has arrived on a connection, and reply to the complete
+	 *  lines.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Conn c = (Conn) key.attachment();
+		in.clear();
+		if (c.partial != null) in.put(c.partial);
+		int n = ch.read(in);
+		if (n < 0) {
+			close(key);
+			return;
+		}
+		outLen = 0;
+		if (c.binary) frames(c);
+		else lines(c, in.array(), in.position() - n, in.position());
+		send(key, c);
+	}
+
+	/** Process the complete lines in buf[0..end), where those before
+	 *  from have been checked already and hold no end of line, and keep
+	 *  what follows them in c.partial. Stop after a get all, or when
+	 *  the replies prepared reach MAX_REPLIES.
+	 */
+	private void lines(Conn c, byte[] buf, int from, int end) {
+		int start = 0;
+		c.partial = null;
+		c.unread = false;
+		for (int i = from; i < end; i++) {
+			if (buf[i] != '\n') continue;
+			int len = i - start;
+			if (len > 0 && buf[len + start - 1] == '\r') len--;
+			if (len == 0) { // blank line: done
+				c.closing = true;
+				return;
+			}
+			String command = new String(buf, start, len,
+						    StandardCharsets.US_ASCII);
+			start = i + 1;
+			if (command.equals("get all")) {
+				c.all = TcpMapServer.pairs();
+				c.unread = true;
+				break;
+			}
+			if (command.equals("binary")) {
+				reply("Ok");
+				append('\n');
+				c.binary = true;
+				c.unread = true;
+				break;
+			}
+			reply(TcpMapServer.processOperation(command));
+			append('\n');
+			if (outLen >= MAX_REPLIES) {
+				c.unread = true;
+				break;
+			}
+		}
+		if (start == end) {
+			c.unread = false;
+		} else if (!c.unread && end - start == MAX_LINE) {
+			reply("Error:line too long");
+			append('\n');
+			c.closing = true;
+		} else {
+			c.partial = Arrays.copyOfRange(buf, start, end);
+		}
+	}
+
+	/** Process the complete binary frames in in[0..position), and keep
+	 *  the rest in c.partial; stop when the replies prepared are too long.
+	 */
+	private void frames(Conn c) {
+		in.flip();
+		c.partial = null;
+		c.unread = false;
+		while (true) {
+			ByteBuffer b = ByteBuffer.wrap(out, outLen, out.length - outLen);
+			int r = Binary.process(in, b, probe, TcpMapServer.store());
+			outLen = b.position();
+			if (r == Binary.OUTPUT && outLen == 0) {
+				// room for the longest reply
+				out = new byte[Binary.MAX_FRAME];
+				continue;
+			}
+			if (r == Binary.CLOSE) {
+				c.closing = true;
+				return;
+			}
+			c.unread = r == Binary.OUTPUT;
+			break;
+		}
+		if (in.hasRemaining()) {
+			c.partial = new byte[in.remaining()];
+			in.get(c.partial);
+		}
+	}
+
+	/** Add a reply to those being prepared. */
+	private void reply(CharSequence response) {
+		int len = response.length();
+		if (outLen + len + 1 > out.length)
+			out = Arrays.copyOf(out, Math.max(2 * out.length,
+							  outLen + len + 1));
+		for (int i = 0; i < len; i++) {
+			char ch = response.charAt(i);
+			out[outLen++] = (byte) (ch < 128 ? ch : '?');
+		}
+	}
+
+	private void append(char ch) {
+		if (outLen == out.length)
+			out = Arrays.copyOf(out, 2 * out.length);
+		out[outLen++] = (byte) ch;
+	}
+
+	/** Send the replies prepared, then go on with the connection (the
+	 *  rest of a get all, the commands after it) as long as the socket
+	 *  takes the replies; when it does not, keep them until it is
+	 *  writable.
+	 */
+	private void send(SelectionKey key, Conn c) throws IOException {
+		SocketChannel ch = (SocketChannel) key.channel();
+		while (true) {
+			ByteBuffer b = ByteBuffer.wrap(out, 0, outLen);
+			if (outLen > 0) ch.write(b);
+			if (out.length >= MAX_LINE) // after a long reply
+				out = new byte[1 << 16];
+			if (b.hasRemaining()) {
+				c.pending = ByteBuffer.allocate(b.remaining());
+				c.pending.put(b).flip();
+				if (key.interestOps() != SelectionKey.OP_WRITE)
+					key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			outLen = 0;
+			if (c.all != null) {
+				chunk.setLength(0);
+				if (!TcpMapServer.getAll(c.all, chunk,
+							 TcpMapServer.CHUNK)) {
+					c.all = null;
+					chunk.append('\n');
+				}
+				reply(chunk);
+			} else if (c.closing) {
+				close(key);
+				return;
+			} else if (c.unread && c.binary) {
+				in.clear();
+				in.put(c.partial);
+				frames(c);
+			} else if (c.unread) {
+				lines(c, c.partial, 0, c.partial.length);
+			} else {
+				if (key.interestOps() != SelectionKey.OP_READ)
+					key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+		}
+	}
+
+	/** Send the replies waiting on a writable connection. */
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel ch = (SocketChannel) key.channel();
+		Conn c = (Conn) key.attachment();
+		ch.write(c.pending);
+		if (c.pending.hasRemaining()) return;
+		c.pending = null;
+		outLen = 0;
+		send(key, c);
+	}
+
+	/** Close a connection whose request failed, after trying to send it
+	 *  the replies to the requests before it and an error (in the
+	 *  protocol it speaks), so that one bad request does not stop the
+	 *  loop and the other connections.
+	 */
+	private void fail(SelectionKey key) {
+		Conn c = (Conn) key.attachment();
+		ByteBuffer err = ByteBuffer.allocate(INTERNAL.length + 7);
+		if (c.binary) err.put(Binary.ERROR).putInt(INTERNAL.length);
+		else err.put("Error:".getBytes(StandardCharsets.US_ASCII));
+		err.put(INTERNAL);
+		if (!c.binary) err.put((byte) '\n');
+		err.flip();
+		ByteBuffer pending = c.pending != null ? c.pending
+						       : ByteBuffer.allocate(0);
+		try {
+			((SocketChannel) key.channel()).write(new ByteBuffer[] {
+				pending, ByteBuffer.wrap(out, 0, outLen), err });
+		} catch(IOException e) {
+			// closing anyway
+		}
+		outLen = 0;
+		close(key);
+	}
+
+	private void close(SelectionKey key) {
+		if (!key.channel().isOpen()) return;
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch(IOException e) {
+			System.err.println("EventLoop:close: " + e);
+		}
+		connections--;
+	}
+}
@@ -0,0 +1,216 @@
+/* TcpMapBench.java
+ * Usage: TcpMapBench IP/hostname [port] [conns=N] [active=N] [secs=N]
+ *		[keys=N] [get=F] [value=N] [protocol=text|binary]
+ *
+ * Description: Load generator for TcpMapServer with many concurrent
+ * connections. It opens conns connections to the server (default 1000),
+ * of which active ones (default 16) each send a stream of requests for
+ * secs seconds (default 10), one at a time, waiting for every reply,
+ * while the other ones stay idle. It then prints the throughput and the
+ * latency of the requests, and checks that the idle connections are
+ * still served, by sending a get on each of them.
+ *
+ * keys		is the number of distinct keys (default 1000)
+ * get		is the fraction of gets, the rest being puts (default 0.9)
+ * value	is the length of the values put (default 16)
+ * protocol	is the protocol of the active connections: text (default),
+ *		or binary, negotiated with "binary" (see Binary)
+ *
+ * A request that gets no reply in 5 seconds stops its connection,
+ * which is reported as stalled (as happens with a server that serves
+ * one connection at a time, stuck on an idle one).
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TcpMapBench {
+	private static final int TIMEOUT = 5000; // ms
+
+	private static String host;
+	private static int port = 30123;
+	private static int keys = 1000, valueLen = 16;
+	private static double getRatio = 0.9;
+	private static String value;
+	private static boolean binary = false;
+
+	/** An active connection, sending requests until the deadline. */
+	private static class Active extends Thread {
+		long deadline;
+		long[] lat = new long[1 << 16];	// latencies (ns)
+		int count = 0;
+		boolean stalled = false;
+
+		public void run() {
+			Random rand = new Random();
+			try (Socket sock = new Socket(host, port)) {
+				sock.setTcpNoDelay(true);
+				sock.setSoTimeout(TIMEOUT);
+				if (binary) {
+					runBinary(sock, rand);
+					return;
+				}
+				BufferedReader in = new BufferedReader(
+					new InputStreamReader(
+						sock.getInputStream(), "US-ASCII"));
+				BufferedWriter out = new BufferedWriter(
+					new OutputStreamWriter(
+						sock.getOutputStream(), "US-ASCII"));
+				while (System.nanoTime() < deadline) {
+					String key = "key" + rand.nextInt(keys);
+					long t = System.nanoTime();
+					out.write(rand.nextDouble() < getRatio ?
+						  "get:" + key :
+						  "put:" + key + ":" + value);
+					out.newLine();
+					out.flush();
+					if (in.readLine() == null) break;
+					if (count == lat.length)
+						lat = Arrays.copyOf(lat, 2 * count);
+					lat[count++] = System.nanoTime() - t;
+				}
+			} catch(SocketTimeoutException e) {
+				stalled = true;
+			} catch(IOException e) {
+				System.err.println("TcpMapBench:run: " + e);
+			}
+		}
+
+		// Send the requests in binary frames
+		void runBinary(Socket sock, Random rand) throws IOException {
+			InputStream is = sock.getInputStream();
+			OutputStream os = sock.getOutputStream();
+			os.write("binary\n".getBytes("US-ASCII"));
+			StringBuilder ok = new StringBuilder();
+			int c;
+			while ((c = is.read()) >= 0 && c != '\n') ok.append((char) c);
+			if (!ok.toString().equals("Ok"))
+				throw new IOException("no binary protocol: " + ok);
+			DataInputStream in = new DataInputStream(
+						new BufferedInputStream(is));
+			DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(os));
+			byte[] v = value.getBytes("US-ASCII");
+			byte[] reply = new byte[1 << 16];
+			while (System.nanoTime() < deadline) {
+				byte[] key = ("key" + rand.nextInt(keys))
+						.getBytes("US-ASCII");
+				boolean get = rand.nextDouble() < getRatio;
+				long t = System.nanoTime();
+				out.writeByte(get ? Binary.GET : Binary.PUT);
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeInt(get ? 0 : v.length);
+				if (!get) out.write(v);
+				out.flush();
+				in.readByte();
+				int len = in.readInt();
+				if (len > reply.length) reply = new byte[len];
+				in.readFully(reply, 0, len);
+				if (count == lat.length)
+					lat = Arrays.copyOf(lat, 2 * count);
+				lat[count++] = System.nanoTime() - t;
+			}
+		}
+	}
+
+	public static void main(String args[]) throws Exception {
+		int conns = 1000, active = 16, secs = 10;
+		host = args[0];
+		for (int i = 1; i < args.length; i++) {
+			String[] kv = args[i].split("=");
+			if (kv.length == 1 && i == 1)
+				port = Integer.parseInt(args[i]);
+			else if (kv[0].equals("conns"))
+				conns = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("active"))
+				active = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("secs"))
+				secs = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("keys"))
+				keys = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("get"))
+				getRatio = Double.parseDouble(kv[1]);
+			else if (kv[0].equals("value"))
+				valueLen = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("protocol"))
+				binary = kv[1].equals("binary");
+			else {
+				System.err.println("TcpMapBench: unknown option "
+						   + args[i]);
+				System.exit(1);
+			}
+		}
+		char[] v = new char[valueLen];
+		Arrays.fill(v, 'v');
+		value = new String(v);
+
+		// 1. Open the idle connections
+		long t0 = System.nanoTime();
+		ArrayList<Socket> idle = new ArrayList<>();
+		for (int i = active; i < conns; i++) {
+			Socket sock = new Socket(host, port);
+			sock.setSoTimeout(TIMEOUT);
+			idle.add(sock);
+		}
+		System.out.printf("opened %d idle connections in %.2f s%n",
+				  idle.size(), (System.nanoTime() - t0) / 1e9);
+
+		// 2. Run the active connections
+		Active[] threads = new Active[active];
+		long start = System.nanoTime();
+		for (int i = 0; i < active; i++) {
+			threads[i] = new Active();
+			threads[i].deadline = start + secs * 1000000000L;
+			threads[i].start();
+		}
+		int total = 0, stalled = 0;
+		for (Active a : threads) {
+			a.join();
+			total += a.count;
+			if (a.stalled) stalled++;
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long[] lat = new long[total];
+		int n = 0;
+		for (Active a : threads) {
+			System.arraycopy(a.lat, 0, lat, n, a.count);
+			n += a.count;
+		}
+		Arrays.sort(lat);
+		System.out.printf("%d active connections: %d requests in %.2f s:"
+			+ " %.0f requests/sec, %d stalled%n", active, total,
+			elapsed, total / elapsed, stalled);
+		if (total > 0)
+			System.out.printf("latency (us): p50 %d p99 %d p999 %d "
+				+ "max %d%n", lat[total / 2] / 1000,
+				lat[(int) (total * 0.99)] / 1000,
+				lat[(int) (total * 0.999)] / 1000,
+				lat[total - 1] / 1000);
+
+		// 3. Check that the idle connections are served
+		int answered = 0;
+		try {
+			for (Socket sock : idle) {
+				OutputStream out = sock.getOutputStream();
+				out.write("get:key0\n".getBytes("US-ASCII"));
+				out.flush();
+			}
+			for (Socket sock : idle) {
+				InputStream in = sock.getInputStream();
+				int c;
+				while ((c = in.read()) >= 0 && c != '\n') ;
+				if (c < 0) break;
+				answered++;
+			}
+		} catch(SocketTimeoutException e) {
+			// stop at the first one not served
+		}
+		System.out.println("idle connections answered: " + answered
+				   + " of " + idle.size());
+		for (Socket sock : idle) sock.close();
+	}
+}
@@ -2,7 +2,7 @@
  * Author: Chengyue Gong
  * Date created: September 10
  * Date last modified: September 10
- * Usage: TcpMapClient IP/hostname [port]
+ * Usage: TcpMapClient IP/hostname [port] [bulk=file] [quiet]
  * The port number defaults to 30123.
  *
  * Description: The client first sends a TCP connection request to the server.
@@ -16,19 +16,90 @@
  * get all  - returns all of the key-value pairs
  * put:k:v 	- adds the pair (k,v) (if key=k exists, replaces the value)
  * remove:k - deletes the pair (k,v) if key=k exists
+ *
+ * bulk		if present, the commands are read from the file, one per line
+ *		(blank lines are skipped), and pipelined: they are streamed
+ *		to the server without waiting for the replies, which a
+ *		second thread reads and prints as they come; the number of
+ *		commands and the time taken are printed at the end (on the
+ *		standard error)
+ * quiet	if present, the replies to the bulk commands are counted
+ *		but not printed
  */
 
 import java.io.*;
 import java.net.*;
 
 public class TcpMapClient {
+	// Stream the commands of a file to the server, while printing
+	// the replies
+	private static void bulk(Socket sock, String file, boolean quiet)
+							throws Exception {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			sock.getInputStream(),"US-ASCII"), 1 << 16);
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+			sock.getOutputStream(),"US-ASCII"), 1 << 16);
+		long t0 = System.nanoTime();
+		long[] replies = new long[1];
+		Thread reader = new Thread(() -> {
+			PrintStream print = new PrintStream(new BufferedOutputStream(
+				new FileOutputStream(FileDescriptor.out), 1 << 16));
+			try {
+				String line;
+				// the server closes the connection after the last reply
+				while ((line = in.readLine()) != null) {
+					if (!quiet) print.println(line);
+					replies[0]++;
+				}
+			} catch(IOException e) {
+				System.err.println("TcpMapClient:bulk: " + e);
+			}
+			print.flush();
+		});
+		reader.start();
+
+		long commands = 0;
+		try (BufferedReader fin = new BufferedReader(new FileReader(file),
+							     1 << 16)) {
+			String line;
+			while ((line = fin.readLine()) != null) {
+				if (line.length() == 0) continue;
+				out.write(line);
+				out.newLine();
+				commands++;
+			}
+		}
+		// a blank line ends the session
+		out.newLine();
+		out.flush();
+		reader.join();
+		double secs = (System.nanoTime() - t0) / 1e9;
+		System.err.printf("%d commands, %d replies in %.2f s: "
+			+ "%.0f commands/sec%n", commands, replies[0], secs,
+			commands / secs);
+	}
+
 	public static void main(String args[]) throws Exception {
 		// 1. Create a socket for TCP connection to server
 		int port = 30123; // default port number
-		if (args.length > 1) 
-			port = Integer.parseInt(args[1]);
+		String file = null;
+		boolean quiet = false;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].startsWith("bulk="))
+				file = args[i].substring(5);
+			else if (args[i].equals("quiet"))
+				quiet = true;
+			else
+				port = Integer.parseInt(args[i]);
+		}
 		Socket sock = new Socket(args[0], port);
-		
+		sock.setTcpNoDelay(true);
+		if (file != null) {
+			bulk(sock, file, quiet);
+			sock.close();
+			return;
+		}
+
 		// 2. Create buffered reader & writer for socket's io streams
 		BufferedReader in = new BufferedReader(new InputStreamReader(
 			sock.getInputStream(),"US-ASCII"));
@@ -2,10 +2,29 @@
  * Author: Chengyue Gong
  * Date created: September 10
  * Date last modified: September 15
- * Usage: TcpMapServer [ IP [port] ]
+ * Usage: TcpMapServer [ IP [port] ] [io=nio|virtual|pool|serial]
+ *		[loops=N] [threads=N]
  * If IP address is omitted, the wildcard address is used.
  * If port number is omitted, it will be set to 30123.
  *
+ * io		selects how the connections are served: nio serves them all
+ *		at once, from a few event loops, each a thread multiplexing
+ *		its share of the connections with a Selector (see
+ *		EventLoop), so thousands of mostly idle connections can be
+ *		open at the same time (default); virtual serves every
+ *		connection in a virtual thread of its own, with blocking
+ *		streams, which also scales to thousands of connections
+ *		(virtual threads need Java 21; on an older one, it falls
+ *		back to a platform thread per connection); pool serves the
+ *		connections in a pool of platform threads, with blocking
+ *		streams, one connection per thread at a time (the ones
+ *		beyond the size of the pool wait for a thread); serial
+ *		serves one connection at a time, to completion, before
+ *		accepting the next one
+ * loops	is the number of event loops, the connections being dealt
+ *		to them in turn (default: the number of processors)
+ * threads	is the number of threads of the pool (default 256)
+ *
  * Description: The server stores a set of (key, value) pairs.
  * Keys and values are strings, and no same key.
  * The server creates a TCP server socket listenning to the client, and
@@ -14,57 +33,162 @@
  * and replies with the message indicating whether the operations
  * have been successfully completed or not.
  * The server and the client communicate via socket inputstream and outputstream.
+ * A client may pipeline its operations, sending many of them before reading
+ * the replies, which come in the same order; the server then replies to all
+ * the operations it has received at once.
  *
- * The types of request include get, get all, put, and remove.
+ * The types of request include get, get all, put, remove, and scan.
  * get:k	- returns the value of the key=k if key=k exists
  * get all  - returns all of the key-value pairs
  * put:k:v 	- adds the pair (k,v) (if key=k exists, replaces the value)
  * remove:k - deletes the pair (k,v) if key=k exists
+ * scan:c:n	- returns up to n of the pairs whose keys follow c, in order
+ *
+ * The pairs are kept in a concurrent skip list, sorted by key, which
+ * operations change while others read it, without waiting. "get all"
+ * replies with a single line, k1:v1::k2:v2..., which is written a chunk
+ * at a time while the map is scanned, so the server never holds all the
+ * pairs in memory at once, and the pairs changed during the scan may or
+ * may not be included. A client that does not want the whole map in one
+ * line reads it with a cursor instead, a bounded number of pairs at a
+ * time:
+ *	scan::100		- the first 100 pairs (at most MAX_SCAN)
+ *	scan:>k:100		- the next 100 pairs, after key k
+ * The reply is scan:c::k1:v1::k2:v2..., where c is the cursor for the next
+ * scan (">" and the last key returned), or empty when there are no more
+ * pairs; as a key listed holds no colon, c ends at the first one, and the
+ * cursor after the empty key (">") is not the one of the first scan ("").
+ * A reply holds fewer pairs than asked for if they take more than about
+ * CHUNK characters, but always at least one.
+ *
+ * A client may switch its connection to a binary protocol, with length
+ * prefixed keys and values, by sending "binary" and waiting for the reply
+ * "Ok" (see Binary). Both protocols work on the same pairs, kept as bytes;
+ * the text one cannot show those a binary put made with characters that
+ * would break its lines: a get of a value holding an end of line replies
+ * an error, and get all and scan leave out the pairs whose key or value
+ * holds a colon or an end of line.
  */
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class TcpMapServer {
-	// Store a set of (key, value) pairs
-	private static HashMap<String, String> hmap = new HashMap<>();
+	// Largest number of pairs returned by a scan
+	public static final int MAX_SCAN = 1000;
+	// Start of a scan cursor, before the key it follows
+	public static final char AFTER = '>';
+	// Size of the pieces of get all, and limit on a scan (in chars)
+	public static final int CHUNK = 1 << 16;
+
+	// Store a set of (key, value) pairs, sorted by key, shared by the
+	// threads serving the connections
+	private static ConcurrentSkipListMap<ByteKey, byte[]> hmap =
+						new ConcurrentSkipListMap<>();
+
+	// Return the map, for the binary protocol
+	static ConcurrentSkipListMap<ByteKey, byte[]> store() { return hmap; }
+
+	private static String ascii(byte[] b) {
+		return new String(b, StandardCharsets.US_ASCII);
+	}
+
+	// Return true if b holds an end of line, or a colon if colon is set
+	private static boolean holds(byte[] b, boolean colon) {
+		for (byte c : b)
+			if (c == '\n' || c == '\r' || colon && c == ':')
+				return true;
+		return false;
+	}
+
+	// Return true if a pair can be listed in text (by get all or scan),
+	// as one a text put could have made
+	private static boolean isText(Map.Entry<ByteKey, byte[]> e) {
+		String k = e.getKey().toString();
+		return k.indexOf(':') < 0 && k.indexOf('\n') < 0
+		    && k.indexOf('\r') < 0 && !holds(e.getValue(), true);
+	}
 
  	// get function (get:k)
  	// Found k 		- ok:value
  	// Not Found k	- no match
  	private static String get(String key) {
- 		if (hmap.containsKey(key)) {
- 			return "ok:" + hmap.get(key);
+ 		byte[] value = hmap.get(new ByteKey(key));
+ 		if (value != null && holds(value, false)) {
+ 			return "Error:value holds an end of line";
+ 		} else if (value != null) {
+ 			return "ok:" + ascii(value);
  		} else {
  			return "no match";
  		}
  	}
 
  	// get all function (get all)
- 	// Return all key-value pairs
- 	private static String getAll() {
- 		StringBuilder all = new StringBuilder();
- 		int size = hmap.size();
- 		int count = 0;
- 		for (String key: hmap.keySet()) {
- 			all.append(key+":"+hmap.get(key));
- 			if (count < size - 1)
+ 	// Return an iterator over all key-value pairs that can be listed in
+ 	// text, for getAll()
+ 	static Iterator<Map.Entry<ByteKey, byte[]>> pairs() {
+ 		return hmap.entrySet().stream().filter(TcpMapServer::isText)
+ 			   .iterator();
+ 	}
+
+ 	// Append the pairs met by it to all, k1:v1::k2:v2..., until all
+ 	// holds more than limit chars
+ 	// Return true if there are more pairs to append
+ 	static boolean getAll(Iterator<Map.Entry<ByteKey, byte[]>> it,
+ 			      StringBuilder all, int limit) {
+ 		while (it.hasNext() && all.length() < limit) {
+ 			Map.Entry<ByteKey, byte[]> e = it.next();
+ 			all.append(e.getKey()).append(':')
+ 			   .append(ascii(e.getValue()));
+ 			if (it.hasNext())
  				all.append("::");
- 			count++;
  		}
- 		return all.toString();
+ 		return it.hasNext();
+ 	}
+
+ 	// scan function (scan:cursor:count)
+ 	// Return up to count pairs whose keys follow the cursor (from the
+ 	// first key if it is empty, after key k if it is >k):
+ 	// scan:next::k1:v1::k2:v2..., where next is the cursor of the
+ 	// following scan, empty after the last pair
+ 	private static String scan(String cursor, int count) {
+ 		ConcurrentNavigableMap<ByteKey, byte[]> rest = cursor.isEmpty() ?
+ 			hmap : hmap.tailMap(new ByteKey(cursor.substring(1)), false);
+ 		Iterator<Map.Entry<ByteKey, byte[]>> it = rest.entrySet().stream()
+ 			.filter(TcpMapServer::isText).iterator();
+ 		StringBuilder pairs = new StringBuilder();
+ 		ByteKey last = null;
+ 		int n = 0;
+ 		while (it.hasNext() && n < count && pairs.length() < CHUNK) {
+ 			Map.Entry<ByteKey, byte[]> e = it.next();
+ 			pairs.append("::").append(e.getKey()).append(':')
+ 			     .append(ascii(e.getValue()));
+ 			last = e.getKey();
+ 			n++;
+ 		}
+ 		if (!it.hasNext())
+ 			return "scan:" + pairs;
+ 		return "scan:" + AFTER + last + pairs;
  	}
 
  	// put function (put:k:v)
  	// Found k 		- updated:key
  	// Not Found k	- Ok
 	private static String put(String key, String value) {
- 		if (hmap.containsKey(key)) {
- 			hmap.put(key, value);
+ 		if (hmap.put(new ByteKey(key),
+ 			     value.getBytes(StandardCharsets.US_ASCII)) != null) {
  			return "updated:" + key;
- 		} else {	
- 			hmap.put(key, value);
+ 		} else {
  			return "Ok";
  		}
  	}
@@ -73,8 +197,7 @@ public class TcpMapServer {
  	// Found k 		- Ok
  	// Not Found k	- no match
  	private static String remove(String key) {
- 		if (hmap.containsKey(key)) {
- 			hmap.remove(key);
+ 		if (hmap.remove(new ByteKey(key)) != null) {
  			return "Ok";
  		} else {
  			return "no match";
@@ -82,10 +205,13 @@ public class TcpMapServer {
  	}
 
  	// Process the operation
- 	private static String processOperation(String command) {
+ 	static String processOperation(String command) {
  		String response;
 		String[] request = command.split(":");
 		int numberOfArgument = request.length;
+		// nothing but colons
+		if (numberOfArgument == 0)
+			return "Error:unrecognizable input:" + command;
 		int numberOfColon = 0;
 		for (int i = 0; i < command.length(); i++) {
 			if (command.charAt(i) == ':')
@@ -98,11 +224,17 @@ public class TcpMapServer {
 			String key = request[1];
 			response = get(key);
 		} 
-		// Processing "get all" request (get all)
-		else if (request[0].equals("get all") 
-			&& numberOfArgument == 1
-			&& numberOfColon == 0) { // prevent redundant colon(:)
-			response = getAll();
+		// "get all" is streamed by the callers, see getAll()
+		// Processing "scan" request (scan:cursor:count)
+		else if (request[0].equals("scan")
+			&& numberOfArgument == 3
+			&& numberOfColon == 2 // prevent redundant colon(:)
+			&& (request[1].isEmpty() || request[1].charAt(0) == AFTER)
+			&& request[2].matches("[0-9]{1,9}")
+			&& Integer.parseInt(request[2]) > 0) {
+			int count = Math.min(Integer.parseInt(request[2]),
+					     MAX_SCAN);
+			response = scan(request[1], count);
 		}
 		// Processing "put" request (put:k:v)
 		else if (request[0].equals("put") 
@@ -127,26 +259,81 @@ public class TcpMapServer {
 		return response;
  	}
 
-	public static void main(String args[]) throws Exception {
-		// 1. Oepn listening socket
-		int port = 30123; // default port number
-		InetAddress serverAdr = null; // wildcard address
-		if (args.length > 1)
-			port = Integer.parseInt(args[1]);
-		if (args.length > 0) 
-			serverAdr = InetAddress.getByName(args[0]);
-		ServerSocket listenSock = new ServerSocket(port, 0, serverAdr);
+	// Serve the connections from event loops
+	private static void serveNio(InetAddress serverAdr, int port, int loops)
+							throws IOException {
+		EventLoop[] loop = new EventLoop[loops];
+		for (int i = 0; i < loops; i++) {
+			loop[i] = new EventLoop();
+			new Thread(loop[i], "loop-" + i).start();
+		}
+		ServerSocketChannel listen = ServerSocketChannel.open();
+		// room for bursts of connection requests
+		listen.bind(new InetSocketAddress(serverAdr, port), 4096);
+		for (int i = 0; ; i = (i + 1) % loops) {
+			SocketChannel ch = listen.accept();
+			ch.socket().setTcpNoDelay(true);
+			loop[i].add(ch);
+		}
+	}
 
-		// 2. Communication begins
+	// Return an executor starting a virtual thread per task, or, before
+	// Java 21, a platform thread per task
+	private static ExecutorService virtualThreads() {
+		try {
+			return (ExecutorService) Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor")
+				.invoke(null);
+		} catch(ReflectiveOperationException e) {
+			System.err.println("TcpMapServer: no virtual threads, "
+				+ "using a platform thread per connection");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	// Process the binary requests of a connection (see Binary), until
+	// an END; the replies are written once all the requests received so
+	// far have been processed
+	private static void serveBinary(InputStream is, OutputStream os)
+							throws IOException {
+		ByteBuffer in = ByteBuffer.allocate(Binary.MAX_FRAME);
+		ByteBuffer out = ByteBuffer.allocate(1 << 16);
+		ByteKey probe = new ByteKey();
 		while (true) {
-			// 2.1 Create a new socket for incoming connection request
-			Socket sock = listenSock.accept();
-			// 2.2 Create buffered reader & writer for socket's io streams
+			int n = is.read(in.array(), in.position(), in.remaining());
+			if (n < 0) return;
+			in.position(in.position() + n);
+			in.flip();
+			int r;
+			do {
+				r = Binary.process(in, out, probe, hmap);
+				if (r == Binary.OUTPUT && out.position() == 0) {
+					// room for the longest reply
+					out = ByteBuffer.allocate(Binary.MAX_FRAME);
+					continue;
+				}
+				if (r != Binary.INPUT || is.available() == 0) {
+					os.write(out.array(), 0, out.position());
+					out.clear();
+				}
+			} while (r == Binary.OUTPUT);
+			if (r == Binary.CLOSE) return;
+			in.compact();
+		}
+	}
+
+	// Process the operations of a connection, until a blank line.
+	// A client may send many operations without waiting for the replies
+	// (pipelining); the replies are then flushed once all the operations
+	// received so far have been processed, in a single write
+	private static void serve(Socket sock) {
+		try {
+			sock.setTcpNoDelay(true);
+			// Create buffered reader & writer for socket's io streams
 			BufferedReader in = new BufferedReader(new InputStreamReader(
 				sock.getInputStream(),"US-ASCII"));
 			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
 				sock.getOutputStream(),"US-ASCII"));
-			// 2.3 Process operations
 			while (true) {
 				// Get the command
 				String command = in.readLine();
@@ -154,14 +341,104 @@ public class TcpMapServer {
 				if (command == null || command.length() == 0) 
 					break;
 				// PROCESS
+				if (command.equals("get all")) {
+					// write the pairs a chunk at a time
+					Iterator<Map.Entry<ByteKey, byte[]>> it = pairs();
+					StringBuilder chunk = new StringBuilder();
+					boolean more;
+					do {
+						chunk.setLength(0);
+						more = getAll(it, chunk, CHUNK);
+						out.append(chunk);
+					} while (more);
+					out.newLine();
+					if (!in.ready()) out.flush();
+					continue;
+				}
+				if (command.equals("binary")) {
+					// the client waits for Ok before switching
+					if (in.ready()) {
+						out.write("Error:frames before Ok");
+						out.newLine();
+						continue;
+					}
+					out.write("Ok");
+					out.newLine();
+					out.flush();
+					serveBinary(sock.getInputStream(),
+						    sock.getOutputStream());
+					return;
+				}
 				String response = processOperation(command);
-				// Reply
+				// Reply, once nothing more is waiting
 				out.write(response);
 				out.newLine();
-				out.flush();
+				if (!in.ready()) out.flush();
+			}
+			out.flush();
+		} catch(IOException e) {
+			System.err.println("TcpMapServer:serve: " + e);
+		} finally {
+			try {
+				sock.close();
+			} catch(IOException e) {
+				System.err.println("TcpMapServer:serve: " + e);
+			}
+		}
+	}
+
+	public static void main(String args[]) throws Exception {
+		// 1. Oepn listening socket
+		int port = 30123; // default port number
+		InetAddress serverAdr = null; // wildcard address
+		String io = "nio";
+		int loops = Runtime.getRuntime().availableProcessors();
+		int threads = 256;
+		int positional = 0;
+		for (String arg : args) {
+			String[] kv = arg.split("=");
+			if (kv.length == 1 && positional == 0) {
+				serverAdr = InetAddress.getByName(arg);
+				positional++;
+			} else if (kv.length == 1 && positional == 1) {
+				port = Integer.parseInt(arg);
+				positional++;
+			} else if (kv[0].equals("io")) {
+				io = kv[1];
+			} else if (kv[0].equals("loops")) {
+				loops = Integer.parseInt(kv[1]);
+			} else if (kv[0].equals("threads")) {
+				threads = Integer.parseInt(kv[1]);
+			} else {
+				System.err.println("TcpMapServer: unknown option "
+						   + arg);
+				System.exit(1);
 			}
-			// 2.4 Close the socket
-			sock.close();
+		}
+		if (io.equals("nio")) {
+			serveNio(serverAdr, port, loops);
+			return;
+		}
+		ExecutorService exec = null;
+		if (io.equals("virtual"))
+			exec = virtualThreads();
+		else if (io.equals("pool"))
+			exec = Executors.newFixedThreadPool(threads);
+		else if (!io.equals("serial")) {
+			System.err.println("TcpMapServer: unknown io " + io);
+			System.exit(1);
+		}
+		ServerSocket listenSock = new ServerSocket(port,
+				exec != null ? 4096 : 0, serverAdr);
+
+		// 2. Communication begins
+		while (true) {
+			// Create a new socket for incoming connection request
+			Socket sock = listenSock.accept();
+			if (exec != null)
+				exec.execute(() -> serve(sock));
+			else
+				serve(sock);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+/** Storage engine that bounds the memory used by another one.
+ *
+ *  The size of a pair is the length of its key plus the length of its
+ *  value. When a put takes the total size over the limit, pairs are
+ *  evicted until it is under the limit again, so the map can be used
+ *  as a fixed-size cache. Victims are chosen by sampling: a few pairs
+ *  are picked at random and the one the policy likes least is evicted.
+ *  LRU	evicts the sampled pair that was used least recently, which
+ *	approximates LRU without keeping the pairs in a list that every
+ *	get would have to update (as Redis does)
+ *  LFU	evicts the sampled pair that is used least often, according to
+ *	a count-min sketch of the recent accesses (gets and puts, of
+ *	present and absent keys), whose counters are halved periodically
+ *	so that old accesses are forgotten; as in TinyLFU, a new pair
+ *	that is used less often than the victim is evicted instead of
+ *	the victim, so one-off keys do not push out popular ones
+ *
+ *  Each pair has an entry holding its size and last use, kept in a map
+ *  for lookups and in an array for random sampling.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BoundedStore implements MapStore {
+	public static final int LRU = 0, LFU = 1;
+	private static final int SAMPLES = 5;
+
+	private static class Entry {
+		final ByteKey key;
+		int size;		// key length + value length
+		volatile long used;	// time of last use (LRU)
+		int index;		// position in the sample array
+		Entry(ByteKey key) { this.key = key; }
+	}
+
+	private MapStore base;		// store holding the pairs
+	private long limit;		// max total size of the pairs
+	private int policy;		// LRU or LFU
+
+	private ConcurrentHashMap<ByteKey, Entry> entries =
+						new ConcurrentHashMap<>();
+	private AtomicLong total = new AtomicLong();	// total size
+	private FrequencySketch sketch;			// for LFU
+
+	// all entries, for random sampling; guarded by the array's lock
+	private Entry[] all = new Entry[1024];
+	private int count = 0;
+
+	// locks that make changing a pair and its entry atomic
+	private final Object[] locks = new Object[64];
+
+	private LongAdder hits = new LongAdder(), misses = new LongAdder();
+	private LongAdder evictions = new LongAdder();
+	private volatile Listener listener = null;	// told of the evictions
+
+	/** Initialize a new BoundedStore.
+	 *  @param base is the store holding the pairs
+	 *  @param limit is the maximum total size of the pairs, in bytes
+	 *  @param policy is LRU or LFU
+	 */
+	BoundedStore(MapStore base, long limit, int policy) {
+		this.base = base; this.limit = limit; this.policy = policy;
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		if (policy == LFU) sketch = new FrequencySketch(1 << 20);
+	}
+
+	/** Set the receiver of the keys of the pairs evicted. */
+	public void setListener(Listener listener) { this.listener = listener; }
+
+	private Object lock(ByteKey key) { return locks[key.hashCode() & 63]; }
+
+	public int get(ByteKey key, byte[] out, int pos) {
+		if (sketch != null) sketch.increment(key.hashCode());
+		int end = base.get(key, out, pos);
+		if (end < 0) {
+			misses.increment();
+		} else {
+			hits.increment();
+			Entry e = entries.get(key);
+			if (e != null && policy == LRU) e.used = System.nanoTime();
+		}
+		return end;
+	}
+
+	public boolean put(ByteKey key, byte[] value, int off, int len) {
+		if (sketch != null) sketch.increment(key.hashCode());
+		boolean found;
+		Entry e;
+		synchronized (lock(key)) {
+			found = base.put(key, value, off, len);
+			e = entries.get(key);
+			int size = key.length() + len;
+			if (e == null) {
+				e = new Entry(key.copy());
+				entries.put(e.key, e);
+				synchronized (all) { add(e); }
+				total.addAndGet(size);
+			} else {
+				total.addAndGet(size - e.size);
+			}
+			e.size = size;
+			e.used = System.nanoTime();
+		}
+		while (total.get() > limit && evict(found ? null : e)) {
+			e = null; // the new pair is only a candidate once
+		}
+		return found;
+	}
+
+	public boolean remove(ByteKey key) {
+		synchronized (lock(key)) {
+			Entry e = entries.get(key);
+			if (e != null) drop(e);
+			return base.remove(key);
+		}
+	}
+
+	/** Remove the entry (not the pair); caller holds lock(e.key). */
+	private void drop(Entry e) {
+		entries.remove(e.key);
+		synchronized (all) { delete(e); }
+		total.addAndGet(-e.size);
+	}
+
+	/** Add an entry to the sample array. */
+	private void add(Entry e) {
+		if (count == all.length)
+			all = java.util.Arrays.copyOf(all, 2 * count);
+		e.index = count;
+		all[count++] = e;
+	}
+
+	/** Delete an entry from the sample array. */
+	private void delete(Entry e) {
+		Entry last = all[--count];
+		all[e.index] = last;
+		last.index = e.index;
+		all[count] = null;
+	}
+
+	/** Evict one pair.
+	 *  @param candidate is a pair that was just added, which is evicted
+	 *  instead of the victim if it is less valuable (LFU only), or null
+	 *  @return false if there was nothing to evict
+	 */
+	private boolean evict(Entry candidate) {
+		Entry victim = null;
+		synchronized (all) {
+			if (count == 0) return false;
+			ThreadLocalRandom rand = ThreadLocalRandom.current();
+			for (int i = 0; i < SAMPLES; i++) {
+				Entry e = all[rand.nextInt(count)];
+				if (victim == null || worse(e, victim)) victim = e;
+			}
+		}
+		if (policy == LFU && candidate != null && candidate != victim
+		    && worse(candidate, victim))
+			victim = candidate;
+		synchronized (lock(victim.key)) {
+			// the pair may have been removed in the meantime
+			if (entries.get(victim.key) != victim) return true;
+			drop(victim);
+			base.remove(victim.key);
+			evictions.increment();
+		}
+		Listener l = listener;
+		if (l != null) l.removed(victim.key);
+		return true;
+	}
+
+	/** Check if the policy would rather evict a than b. */
+	private boolean worse(Entry a, Entry b) {
+		if (policy == LFU)
+			return sketch.frequency(a.key.hashCode())
+				< sketch.frequency(b.key.hashCode());
+		return a.used < b.used;
+	}
+
+	public int size() { return base.size(); }
+
+	public void forEach(Visitor v) throws IOException { base.forEach(v); }
+
+	/** Return the total size of the pairs, in bytes. */
+	public long memory() { return total.get(); }
+
+	public long hits() { return hits.sum(); }
+
+	public long misses() { return misses.sum(); }
+
+	public long evictions() { return evictions.sum(); }
+}
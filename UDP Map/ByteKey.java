@@ -0,0 +1,95 @@
+/** Key made of a range of ASCII bytes.
+ *
+ *  Keys stored in the map own their bytes. A server thread looks keys
+ *  up with a reusable "probe" key that points into its receive buffer,
+ *  so that no String (or any other object) is created for a lookup.
+ *  Two keys are equal when their byte ranges hold the same bytes,
+ *  whatever the arrays and offsets they refer to. Keys are ordered
+ *  by comparing their bytes, as unsigned values, in lexicographic order.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ByteKey implements Comparable<ByteKey> {
+	private byte[] buf;	// bytes of the key are buf[off..off+len)
+	private int off;
+	private int len;
+	private int hash;	// cached hash code of the key bytes
+
+	/** Create an empty key, to be used as a probe. */
+	public ByteKey() { set(new byte[0], 0, 0); }
+
+	/** Create a key from a String of ASCII characters. */
+	public ByteKey(String s) {
+		byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+		set(b, 0, b.length);
+	}
+
+	/** Point this key at a range of bytes (not copied).
+	 *  @return this key
+	 */
+	public ByteKey set(byte[] buf, int off, int len) {
+		this.buf = buf; this.off = off; this.len = len;
+		int h = 1;
+		for (int i = off; i < off + len; i++) h = 31 * h + buf[i];
+		hash = h;
+		return this;
+	}
+
+	/** Return a key that owns a private copy of this key's bytes. */
+	public ByteKey copy() {
+		ByteKey k = new ByteKey();
+		k.buf = Arrays.copyOfRange(buf, off, off + len);
+		k.off = 0; k.len = len; k.hash = hash;
+		return k;
+	}
+
+	/** Copy the key bytes into out at pos.
+	 *  @return the position following the copied bytes
+	 */
+	public int copyTo(byte[] out, int pos) {
+		System.arraycopy(buf, off, out, pos, len);
+		return pos + len;
+	}
+
+	/** Write the key bytes to a stream. */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buf, off, len);
+	}
+
+	public int length() { return len; }
+
+	/** Return byte i of the key. */
+	public byte byteAt(int i) { return buf[off + i]; }
+
+	/** Check if the key starts with the bytes in b[off..off+len). */
+	public boolean startsWith(byte[] b, int off, int len) {
+		return this.len >= len && Arrays.equals(buf, this.off,
+					this.off + len, b, off, off + len);
+	}
+
+	@Override
+	public int compareTo(ByteKey k) {
+		return Arrays.compareUnsigned(buf, off, off + len,
+					      k.buf, k.off, k.off + k.len);
+	}
+
+	@Override
+	public int hashCode() { return hash; }
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof ByteKey)) return false;
+		ByteKey k = (ByteKey) o;
+		return hash == k.hash && Arrays.equals(buf, off, off + len,
+						k.buf, k.off, k.off + k.len);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, off, len, StandardCharsets.US_ASCII);
+	}
+}
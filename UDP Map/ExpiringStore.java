@@ -0,0 +1,186 @@
+/** Storage engine adding expiration times (TTLs) to another one.
+ *
+ *  A pair may be given a deadline (a wall clock time, in ms) when it is
+ *  put; a pair put without a deadline never expires. Expired pairs are
+ *  removed in two ways. Lazily, a get, put or remove of a pair finds
+ *  that it has expired and treats it as absent. Actively, the deadline
+ *  of each pair is scheduled in a timer wheel, and a background thread
+ *  removes the pairs whose deadline has passed, so that pairs nobody
+ *  asks for do not stay in memory; this costs O(1) per pair and per
+ *  tick, not a periodic scan of all the pairs.
+ *
+ *  The deadlines are kept in a map beside the pairs. A pair that is put
+ *  again, with or without a deadline, keeps the new deadline only; the
+ *  wheel may still hold the old one, which is ignored when it expires.
+ *  Stores without any deadline pay only for an isEmpty() check on get.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ExpiringStore implements MapStore {
+	private static final long TICK = 100;	// wheel tick, in ms
+
+	/** Visitor for the deadlines of a store (see forEachDeadline). */
+	interface DeadlineVisitor {
+		void visit(ByteKey key, long deadline) throws IOException;
+	}
+
+	private MapStore base;		// store holding the pairs
+	private ConcurrentHashMap<ByteKey, Long> deadlines =
+						new ConcurrentHashMap<>();
+	private TimerWheel<ByteKey> wheel;
+	private LongAdder expired = new LongAdder(); // removed by the wheel
+	private volatile Listener listener = null;  // told of the removals
+
+	// locks that make checking a deadline and changing a pair atomic
+	private final Object[] locks = new Object[64];
+
+	/** Initialize a new ExpiringStore.
+	 *  @param base is the store holding the pairs
+	 */
+	ExpiringStore(MapStore base) {
+		this.base = base;
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		wheel = new TimerWheel<>(TICK, System.currentTimeMillis(),
+					 this::expire);
+	}
+
+	/** Start the thread that removes expired pairs. */
+	public void start() {
+		Thread t = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(TICK);
+					wheel.advance(System.currentTimeMillis());
+				} catch(Exception e) {
+					System.err.println("ExpiringStore: " + e);
+					System.exit(1);
+				}
+			}
+		}, "expiry");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Set the receiver of the keys of the pairs removed by the wheel. */
+	public void setListener(Listener listener) { this.listener = listener; }
+
+	private Object lock(ByteKey key) { return locks[key.hashCode() & 63]; }
+
+	/** Check if key has a deadline that has passed. */
+	private boolean isExpired(ByteKey key) {
+		if (deadlines.isEmpty()) return false;
+		Long d = deadlines.get(key);
+		return d != null && d <= System.currentTimeMillis();
+	}
+
+	/** Remove key if it has expired; the caller holds lock(key). */
+	private void removeIfExpired(ByteKey key) {
+		if (isExpired(key)) {
+			deadlines.remove(key);
+			base.remove(key);
+		}
+	}
+
+	/** Remove a pair from the wheel, unless it got a new deadline. A
+	 *  deadline beyond the last level of the wheel comes out early, and
+	 *  is scheduled again.
+	 */
+	private void expire(ByteKey key, long deadline) {
+		synchronized (lock(key)) {
+			Long d = deadlines.get(key);
+			if (d == null || d != deadline) return;
+			if (deadline > System.currentTimeMillis()) {
+				wheel.schedule(key, deadline);
+				return;
+			}
+			deadlines.remove(key);
+			base.remove(key);
+			expired.increment();
+		}
+		Listener l = listener;
+		if (l != null) l.removed(key);
+	}
+
+	public int get(ByteKey key, byte[] out, int pos) {
+		if (isExpired(key)) return -1;
+		return base.get(key, out, pos);
+	}
+
+	public boolean put(ByteKey key, byte[] value, int off, int len) {
+		synchronized (lock(key)) {
+			removeIfExpired(key);
+			if (!deadlines.isEmpty()) deadlines.remove(key);
+			return base.put(key, value, off, len);
+		}
+	}
+
+	/** Add a pair that expires at a given time, or replace the value
+	 *  and deadline of an existing key.
+	 *  @param key is the key
+	 *  @param value holds the value in value[off..off+len)
+	 *  @param deadline is the time the pair expires, in ms since the
+	 *  epoch
+	 *  @return true if the key was already in the store
+	 */
+	public boolean put(ByteKey key, byte[] value, int off, int len,
+			   long deadline) {
+		ByteKey k = key.copy();
+		synchronized (lock(key)) {
+			removeIfExpired(key);
+			deadlines.put(k, deadline);
+			wheel.schedule(k, deadline);
+			return base.put(key, value, off, len);
+		}
+	}
+
+	public boolean remove(ByteKey key) {
+		synchronized (lock(key)) {
+			if (isExpired(key)) {
+				removeIfExpired(key);
+				return false;
+			}
+			if (!deadlines.isEmpty()) deadlines.remove(key);
+			return base.remove(key);
+		}
+	}
+
+	public int size() { return base.size(); }
+
+	public void forEach(Visitor v) throws IOException { base.forEach(v); }
+
+	/** Call v.visit() for every pair that has a deadline. */
+	public void forEachDeadline(DeadlineVisitor v) throws IOException {
+		for (Map.Entry<ByteKey, Long> e : deadlines.entrySet())
+			v.visit(e.getKey(), e.getValue());
+	}
+
+	/** Return the deadline of key, in ms since the epoch, or 0 if it
+	 *  has none.
+	 */
+	public long deadline(ByteKey key) {
+		if (deadlines.isEmpty()) return 0;
+		Long d = deadlines.get(key);
+		return d != null ? d : 0;
+	}
+
+	/** Set the deadline of a pair that is already in the store; used
+	 *  to restore the deadlines saved in a snapshot.
+	 */
+	public void setDeadline(ByteKey key, long deadline) {
+		ByteKey k = key.copy();
+		synchronized (lock(key)) {
+			deadlines.put(k, deadline);
+			wheel.schedule(k, deadline);
+		}
+	}
+
+	/** Return the number of pairs that have a deadline. */
+	public int withDeadline() { return deadlines.size(); }
+
+	/** Return the number of pairs removed because they expired. */
+	public long expired() { return expired.sum(); }
+}
@@ -0,0 +1,264 @@
+/** Fragmentation and reassembly of messages larger than a packet.
+ *
+ *  A message (request or reply) that does not fit in a packet is sent
+ *  as a sequence of fragments, each in a packet of at most MAX_PACKET
+ *  bytes, made of a header and a piece of the message:
+ *	frag:<id>:<index>:<count>\n<piece>
+ *  where id identifies the message among those of its sender, index is
+ *  the number of the piece (from 0) and count the number of pieces. The
+ *  receiver keeps the pieces of every message being reassembled until
+ *  it has them all, then handles the whole message as if it had come in
+ *  a single packet. Pieces may arrive in any order, and duplicates are
+ *  ignored. There is no retransmission of single pieces: a message
+ *  missing a piece is discarded after the timeout, and its sender
+ *  (which gets no reply) sends it again, as it would a lost packet.
+ *
+ *  The memory taken by partial messages is bounded: a message larger
+ *  than MAX_MESSAGE is refused, and when the partial messages kept (their
+ *  pieces, and a table of count pieces for each) reach the memory limit,
+ *  the oldest ones are discarded, so a flood of first fragments cannot
+ *  outgrow it either. An empty piece is refused.
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class Fragments {
+	// Largest packet that fits in an Ethernet frame (1500 - IP - UDP)
+	public static final int MAX_PACKET = 1472;
+	// Largest message that can be sent in fragments
+	public static final int MAX_MESSAGE = 1 << 20;
+	// Room for the header of a fragment
+	private static final int HEADER = 48;
+	// Memory taken by a partial message besides its pieces and their
+	// table (the Message, its Id, its entry in partial)
+	private static final int OVERHEAD = 128;
+	private static final byte[] FRAG =
+		"frag:".getBytes(StandardCharsets.US_ASCII);
+
+	/** Sends the packets of a message. */
+	public interface Sender {
+		void send(byte[] buf, int len) throws IOException;
+	}
+
+	/** A message being reassembled. */
+	private static class Message {
+		byte[][] pieces;
+		int received = 0;	// number of pieces received
+		int bytes = 0;		// total size of the pieces received
+		long started = System.nanoTime();
+		Message(int count) { pieces = new byte[count][]; }
+		// memory taken, charged to Fragments.bytes
+		long size() { return OVERHEAD + 8L * pieces.length + bytes; }
+	}
+
+	/** Identity of a message: its sender and id. */
+	private static class Id {
+		final Object from;
+		final long id;
+		Id(Object from, long id) { this.from = from; this.id = id; }
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Id && ((Id) o).id == id
+				&& Objects.equals(((Id) o).from, from);
+		}
+		@Override
+		public int hashCode() { return Objects.hashCode(from) ^ (int) id; }
+	}
+
+	// partial messages, oldest first; guarded by this
+	private LinkedHashMap<Id, Message> partial = new LinkedHashMap<>();
+	private long bytes = 0;		// size of the partial messages kept
+	private long maxBytes;		// limit on bytes
+	private long timeout;		// ns before a partial message is dropped
+	private long dropped = 0;	// partial messages discarded
+
+	// message returned by the last call of receive()
+	private byte[] data;
+
+	/** Initialize a new Fragments, to reassemble messages.
+	 *  @param maxBytes is the maximum size of the partial messages kept
+	 *  @param timeout is the time after which a partial message is
+	 *  discarded, in ms
+	 */
+	public Fragments(long maxBytes, long timeout) {
+		this.maxBytes = maxBytes;
+		this.timeout = timeout * 1000000L;
+	}
+
+	/** Check if the packet in[0..len) is a fragment. */
+	public static boolean isFragment(byte[] in, int len) {
+		if (len < FRAG.length) return false;
+		for (int i = 0; i < FRAG.length; i++)
+			if (in[i] != FRAG[i]) return false;
+		return true;
+	}
+
+	/** Send msg[0..len), in fragments if it does not fit in a packet.
+	 *  @param buf is a buffer of at least MAX_PACKET bytes for the
+	 *  fragments
+	 */
+	public static void send(byte[] msg, int len, byte[] buf, Sender sender)
+							throws IOException {
+		if (len <= MAX_PACKET) {
+			sender.send(msg, len);
+			return;
+		}
+		int piece = MAX_PACKET - HEADER;
+		int count = (len + piece - 1) / piece;
+		// at most 18 digits, see number()
+		long id = ThreadLocalRandom.current().nextLong(1000000000000000000L);
+		for (int i = 0; i < count; i++) {
+			byte[] h = ("frag:" + id + ":" + i + ":" + count + "\n")
+				.getBytes(StandardCharsets.US_ASCII);
+			int n = Math.min(piece, len - i * piece);
+			System.arraycopy(h, 0, buf, 0, h.length);
+			System.arraycopy(msg, i * piece, buf, h.length, n);
+			sender.send(buf, h.length + n);
+		}
+	}
+
+	/** Send msg[0..len) to the address of pkt on sock, in fragments if
+	 *  it does not fit in a packet.
+	 */
+	public static void send(DatagramSocket sock, DatagramPacket pkt,
+				byte[] msg, int len) throws IOException {
+		send(msg, len, new byte[MAX_PACKET], (b, n) -> {
+			pkt.setData(b, 0, n);
+			sock.send(pkt);
+		});
+	}
+
+	/** Parse the decimal number in in[from..to), or return -1. */
+	private static long number(byte[] in, int from, int to) {
+		if (from == to || to - from > 18) return -1;
+		long n = 0;
+		for (int i = from; i < to; i++) {
+			if (in[i] < '0' || in[i] > '9') return -1;
+			n = 10 * n + (in[i] - '0');
+		}
+		return n;
+	}
+
+	private static int indexOf(byte[] in, int from, int to, char c) {
+		while (from < to && in[from] != c) from++;
+		return from;
+	}
+
+	/** Add the fragment in[0..len), sent from the given address.
+	 *  @return the whole message if this was its last missing piece,
+	 *  otherwise null (also if the fragment is not well formed)
+	 */
+	public synchronized byte[] add(Object from, byte[] in, int len) {
+		int c1 = FRAG.length - 1;
+		int c2 = indexOf(in, c1 + 1, len, ':');
+		int c3 = indexOf(in, c2 + 1, len, ':');
+		int nl = indexOf(in, c3 + 1, len, '\n');
+		long id = number(in, c1 + 1, c2);
+		long index = number(in, c2 + 1, c3);
+		long count = number(in, c3 + 1, nl);
+		int n = len - nl - 1;
+		if (nl >= len || n == 0 || id < 0 || count < 1 || index >= count
+		    || count > MAX_MESSAGE / (MAX_PACKET - HEADER) + 1)
+			return null;
+
+		expire();
+		Id key = new Id(from, id);
+		Message m = partial.get(key);
+		if (m == null) {
+			m = new Message((int) count);
+			partial.put(key, m);
+			bytes += m.size();
+		}
+		if (m.pieces.length != count || m.pieces[(int) index] != null)
+			return null; // inconsistent, or a duplicate
+		if (m.bytes + n > MAX_MESSAGE) {
+			discard(key, m);
+			return null;
+		}
+		byte[] piece = new byte[n];
+		System.arraycopy(in, nl + 1, piece, 0, n);
+		m.pieces[(int) index] = piece;
+		m.received++; m.bytes += n; bytes += n;
+		if (m.received == count) {
+			partial.remove(key);
+			bytes -= m.size();
+			byte[] msg = new byte[m.bytes];
+			int pos = 0;
+			for (byte[] p : m.pieces) {
+				System.arraycopy(p, 0, msg, pos, p.length);
+				pos += p.length;
+			}
+			return msg;
+		}
+		// make room by discarding the oldest partial messages
+		Iterator<Message> it = partial.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Message old = it.next();
+			it.remove();
+			bytes -= old.size();
+			dropped++;
+		}
+		return null;
+	}
+
+	/** Discard the partial messages older than the timeout. */
+	private void expire() {
+		long now = System.nanoTime();
+		Iterator<Message> it = partial.values().iterator();
+		while (it.hasNext()) {
+			Message m = it.next();
+			if (now - m.started < timeout) break;
+			it.remove();
+			bytes -= m.size();
+			dropped++;
+		}
+	}
+
+	private void discard(Id key, Message m) {
+		partial.remove(key);
+		bytes -= m.size();
+		dropped++;
+	}
+
+	/** Receive a message on sock, reassembling it if it comes in
+	 *  fragments. The message is data()[0..length).
+	 *  @param pkt is the packet to receive into, with a buffer of at
+	 *  least MAX_PACKET bytes
+	 *  @return the length of the message
+	 */
+	public int receive(DatagramSocket sock, DatagramPacket pkt)
+							throws IOException {
+		byte[] buf = pkt.getData();
+		while (true) {
+			pkt.setData(buf);
+			sock.receive(pkt);
+			int len = pkt.getLength();
+			if (!isFragment(buf, len)) {
+				data = buf;
+				return len;
+			}
+			byte[] msg = add(pkt.getSocketAddress(), buf, len);
+			if (msg != null) {
+				data = msg;
+				return msg.length;
+			}
+		}
+	}
+
+	/** Return the message received by the last call of receive(). */
+	public byte[] data() { return data; }
+
+	/** Return the number of partial messages discarded so far. */
+	public synchronized long dropped() { return dropped; }
+
+	/** Return the memory taken by the partial messages kept. */
+	public synchronized long bytes() { return bytes; }
+}
@@ -0,0 +1,65 @@
+/** Count-min sketch estimating how often keys are used.
+ *
+ *  Each key hash selects one counter in each of four rows; an access
+ *  increments them, and the estimate of the key's frequency is the
+ *  smallest of the four, which errs only on the high side (when other
+ *  keys share all the counters). Counters are bytes that saturate at
+ *  15. After a number of accesses equal to ten times the width of the
+ *  rows, all counters are halved, so that the sketch reflects recent
+ *  popularity (the aging scheme of TinyLFU).
+ *
+ *  Updates from several threads are not synchronized; a lost increment
+ *  only makes the estimate slightly less accurate.
+ */
+
+public class FrequencySketch {
+	private static final int ROWS = 4;
+	private static final int MAX = 15;
+	private static final int[] SEEDS = {
+		0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f
+	};
+
+	private final byte[][] table;
+	private final int mask;
+	private final int sampleSize;	// accesses between halvings
+	private int accesses = 0;
+
+	/** Initialize a new sketch.
+	 *  @param width is the number of counters per row (a power of 2)
+	 */
+	FrequencySketch(int width) {
+		table = new byte[ROWS][width];
+		mask = width - 1;
+		sampleSize = 10 * width;
+	}
+
+	private int index(int hash, int row) {
+		int h = hash * SEEDS[row];
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/** Record an access to the key with the given hash. */
+	public void increment(int hash) {
+		for (int r = 0; r < ROWS; r++) {
+			int i = index(hash, r);
+			if (table[r][i] < MAX) table[r][i]++;
+		}
+		if (++accesses >= sampleSize) age();
+	}
+
+	/** Return the estimated number of recent accesses to a key. */
+	public int frequency(int hash) {
+		int f = MAX;
+		for (int r = 0; r < ROWS; r++)
+			f = Math.min(f, table[r][index(hash, r)]);
+		return f;
+	}
+
+	/** Halve all the counters. */
+	private synchronized void age() {
+		if (accesses < sampleSize) return; // done by another thread
+		for (byte[] row : table)
+			for (int i = 0; i < row.length; i++) row[i] >>= 1;
+		accesses = 0;
+	}
+}
@@ -0,0 +1,40 @@
+/** Storage engine keeping the pairs in a ConcurrentHashMap.
+ *
+ *  Each pair costs a map entry, a ByteKey, and two byte arrays, i.e.
+ *  around 120 bytes of object overhead on top of the key and value.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HeapStore implements MapStore {
+	private ConcurrentHashMap<ByteKey, byte[]> hmap =
+						new ConcurrentHashMap<>();
+
+	public int get(ByteKey key, byte[] out, int pos) {
+		byte[] value = hmap.get(key);
+		if (value == null) return -1;
+		System.arraycopy(value, 0, out, pos, value.length);
+		return pos + value.length;
+	}
+
+	public boolean put(ByteKey key, byte[] value, int off, int len) {
+		return hmap.put(key.copy(),
+				Arrays.copyOfRange(value, off, off + len)) != null;
+	}
+
+	public boolean remove(ByteKey key) {
+		return hmap.remove(key) != null;
+	}
+
+	public int size() { return hmap.size(); }
+
+	public void forEach(Visitor v) throws IOException {
+		for (Map.Entry<ByteKey, byte[]> e : hmap.entrySet()) {
+			byte[] value = e.getValue();
+			v.visit(e.getKey(), value, 0, value.length);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/** Histogram of latencies (or any other non-negative long values).
+ *
+ *  Values are counted in log-linear buckets, in the style of an HDR
+ *  histogram: each power of two range is split into 32 equal buckets,
+ *  so any value is known to within about 3%, using a fixed array of
+ *  counters whatever the range of the values. Recording a value is a
+ *  few arithmetic operations and an array increment.
+ *
+ *  A histogram is meant to be written by a single thread; histograms
+ *  kept by different threads can be combined with add().
+ */
+
+public class Histogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;	// buckets per power of 2
+
+	private long[] counts = new long[(65 - SUB_BITS) * SUB];
+	private long total = 0;	// number of recorded values
+	private long max = 0;	// largest recorded value
+
+	/** Return the bucket that counts value v. */
+	private static int index(long v) {
+		if (v < SUB) return (int) v;
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return shift * SUB + (int) (v >>> shift);
+	}
+
+	/** Return the largest value counted by bucket i. */
+	private static long highest(int i) {
+		if (i < 2 * SUB) return i;
+		int shift = i / SUB - 1;
+		long top = i % SUB + SUB;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/** Record one value; negative values are counted as 0. */
+	public void record(long v) {
+		if (v < 0) v = 0;
+		counts[index(v)]++; total++;
+		if (v > max) max = v;
+	}
+
+	/** Add the counts of another histogram to this one. */
+	public void add(Histogram h) {
+		for (int i = 0; i < counts.length; i++) counts[i] += h.counts[i];
+		total += h.total;
+		if (h.max > max) max = h.max;
+	}
+
+	/** Forget all recorded values. */
+	public void clear() {
+		java.util.Arrays.fill(counts, 0); total = max = 0;
+	}
+
+	public long count() { return total; }
+
+	public long max() { return max; }
+
+	/** Return the value below which a fraction p of the values fall.
+	 *  @param p is a fraction in [0,1], e.g. 0.99 for the 99th percentile
+	 *  @return the value (accurate to within a bucket), or 0 if no
+	 *  value has been recorded
+	 */
+	public long percentile(double p) {
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(p * total);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(highest(i), max);
+		}
+		return max;
+	}
+
+	/** Summarize the histogram, with values divided by scale.
+	 *  @param scale converts recorded values to the printed unit,
+	 *  e.g. 1000 to print ns values as us
+	 */
+	public String summary(long scale) {
+		return "count " + total
+			+ " p50 " + percentile(0.50) / scale
+			+ " p99 " + percentile(0.99) / scale
+			+ " p999 " + percentile(0.999) / scale
+			+ " max " + max / scale;
+	}
+}
@@ -0,0 +1,404 @@
+/** Micro-benchmarks for the map server.
+ *  usage: MapBench alloc [ n ]
+ *         MapBench log dir [ n [ threads ] ]
+ *         MapBench memory heap|offheap [ n ]
+ *         MapBench ring [ servers [ vnodes [ n ] ] ]
+ *         MapBench snapshot file [ n ]
+ *         MapBench mapped file [ n ]
+ *
+ *  alloc	measures the heap bytes allocated per request, and the time
+ *		per request, by the request processing code of MapServer,
+ *		for n requests of each kind (default 1000000); the original
+ *		String based processing (decode, split, encode) is measured
+ *		alongside, for comparison
+ *  log		measures the throughput of n changes (default 100000),
+ *		logged by the given number of threads (default 4) in
+ *		directory dir, for each durability level of MapLog
+ *  memory	measures the memory taken by a store holding n pairs
+ *		(default 1000000), with keys "key<i>" and 16 byte values;
+ *		run each store in a separate process, with a large enough
+ *		heap (-Xmx) and direct memory (-XX:MaxDirectMemorySize)
+ *  ring	measures how evenly the consistent hashing of MapCluster
+ *		spreads n keys (default 1000000) over the given number of
+ *		servers (default 4) with vnodes points each (default 160),
+ *		and which fraction of the keys move when a server is added
+ *  snapshot	measures the latency of puts and removes to a store of n
+ *		pairs (default 1000000), while it is idle and while a
+ *		SnapshotStore writes a snapshot of it to file, and checks
+ *		that the snapshot holds the pairs as they were when it
+ *		started
+ *  mapped	writes a snapshot of n pairs (default 1000000) in each
+ *		format of SnapshotStore, to file and file.compact, and
+ *		measures the time until the first get can be answered:
+ *		loading the compact one into a HeapStore, or mapping the
+ *		other with a MappedStore; then the time of n gets in each
+ *
+ *  The benchmarks run inside a single process, without sockets, so
+ *  that only the cost of the server's own code is measured.
+ */
+
+import java.io.File;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class MapBench {
+	private static com.sun.management.ThreadMXBean mx =
+		(com.sun.management.ThreadMXBean)
+			ManagementFactory.getThreadMXBean();
+
+	/** Request processing, as done before requests were parsed in place.
+	 *  Kept here only as a point of comparison.
+	 */
+	private static HashMap<String, String> legacyMap = new HashMap<>();
+
+	private static byte[] legacy(byte[] buf, int len) throws Exception {
+		String payload = new String(buf, 0, len, "US-ASCII");
+		String response;
+		String[] request = payload.split(":");
+		if (request[0].equals("get") && request.length == 2) {
+			String value = legacyMap.get(request[1]);
+			response = value != null ? "ok:" + value : "no match";
+		} else if (request[0].equals("put") && request.length == 3) {
+			response = legacyMap.put(request[1], request[2]) != null ?
+					"updated:" + request[1] : "Ok";
+		} else {
+			response = "Error:unrecognizable input:" + payload;
+		}
+		return response.getBytes("US-ASCII");
+	}
+
+	/** Print the allocation and time per request of one run.
+	 *  @param name names the run
+	 *  @param bytes is the number of bytes allocated by the run
+	 *  @param ns is the duration of the run in ns
+	 *  @param n is the number of requests in the run
+	 */
+	private static void print(String name, long bytes, long ns, int n) {
+		System.out.printf("%-16s %8.1f bytes/req %8.1f ns/req%n",
+				  name, ((double) bytes) / n, ((double) ns) / n);
+	}
+
+	/** Measure requests of the form prefix + i%keys (+ suffix). */
+	private static void alloc(String name, String prefix, String suffix,
+				  int keys, int n) throws Exception {
+		byte[][] reqs = new byte[keys][];
+		for (int i = 0; i < keys; i++)
+			reqs[i] = (prefix + i + suffix)
+				.getBytes(StandardCharsets.US_ASCII);
+		byte[] out = new byte[MapServer.MAX_REPLY];
+		ByteKey probe = new ByteKey();
+		long tid = Thread.currentThread().getId();
+
+		// warm up both paths, so that the JIT has compiled them
+		for (int i = 0; i < n; i++) {
+			byte[] r = reqs[i % keys];
+			legacy(r, r.length);
+			MapServer.process(r, 0, r.length, out, 0, probe);
+		}
+
+		long b0 = mx.getThreadAllocatedBytes(tid);
+		long t0 = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			byte[] r = reqs[i % keys];
+			legacy(r, r.length);
+		}
+		long t1 = System.nanoTime();
+		long b1 = mx.getThreadAllocatedBytes(tid);
+		print(name + " before", b1 - b0, t1 - t0, n);
+
+		b0 = mx.getThreadAllocatedBytes(tid);
+		t0 = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			byte[] r = reqs[i % keys];
+			MapServer.process(r, 0, r.length, out, 0, probe);
+		}
+		t1 = System.nanoTime();
+		b1 = mx.getThreadAllocatedBytes(tid);
+		print(name + " after", b1 - b0, t1 - t0, n);
+	}
+
+	/** Measure the rate at which threads can log (and commit) changes. */
+	private static void log(File dir, int durability, String name, int n,
+				int threads) throws Exception {
+		File[] old = dir.listFiles();
+		if (old != null)
+			for (File f : old) f.delete();
+		MapLog log = new MapLog(dir, durability);
+		log.start();
+		byte[] value = new byte[16];
+		Thread[] t = new Thread[threads];
+		long t0 = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			final int id = i;
+			t[i] = new Thread(() -> {
+				try {
+					for (int j = id; j < n; j += threads) {
+						log.append(MapLog.PUT,
+						   new ByteKey("key" + j), value,
+						   0, value.length);
+						log.commit();
+					}
+				} catch(Exception e) {
+					System.err.println("MapBench:log: " + e);
+					System.exit(1);
+				}
+			});
+			t[i].start();
+		}
+		for (int i = 0; i < threads; i++) t[i].join();
+		double secs = (System.nanoTime() - t0) / 1e9;
+		System.out.printf("%-6s %d threads %10.0f changes/sec%n",
+				  name, threads, n / secs);
+	}
+
+	/** Return the heap bytes in use, after a garbage collection. */
+	private static long heapUsed() throws Exception {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) { System.gc(); Thread.sleep(100); }
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/** Return the direct (off-heap) buffer bytes in use. */
+	private static long directUsed() {
+		for (BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans(
+						BufferPoolMXBean.class))
+			if (b.getName().equals("direct")) return b.getMemoryUsed();
+		return 0;
+	}
+
+	/** Measure the memory taken by n pairs in a store. */
+	private static void memory(String name, int n) throws Exception {
+		long heap0 = heapUsed(), direct0 = directUsed();
+		MapStore store = name.equals("offheap") ? new OffHeapStore()
+							: new HeapStore();
+		byte[] value = "vvvvvvvvvvvvvvvv".getBytes(StandardCharsets.US_ASCII);
+		ByteKey key = new ByteKey();
+		byte[] kbuf = new byte[20];
+		long data = 0; // bytes of keys and values
+		for (int i = 0; i < n; i++) {
+			int klen = 0;
+			kbuf[klen++] = 'k'; kbuf[klen++] = 'e'; kbuf[klen++] = 'y';
+			for (byte b : Integer.toString(i).getBytes())
+				kbuf[klen++] = b;
+			store.put(key.set(kbuf, 0, klen), value, 0, value.length);
+			data += klen + value.length;
+		}
+		long heap = heapUsed() - heap0, direct = directUsed() - direct0;
+		System.out.printf("%-8s %d pairs: heap %d MB, off-heap %d MB, "
+			+ "%.1f bytes/pair, of which %.1f are key and value%n",
+			name, store.size(), heap >> 20, direct >> 20,
+			((double) (heap + direct)) / n, ((double) data) / n);
+	}
+
+	/** Return the server owning each of n keys on a ring. */
+	private static int[] owners(String[] servers, int vnodes, int n) {
+		long[] points = MapCluster.ring(servers, vnodes);
+		int[] owner = new int[n];
+		for (int i = 0; i < n; i++) {
+			byte[] b = ("key" + i).getBytes(StandardCharsets.US_ASCII);
+			long h = MapCluster.hash(b, 0, b.length);
+			owner[i] = (int) (points[MapCluster.point(points, h)]
+					  & 0xffff);
+		}
+		return owner;
+	}
+
+	/** Measure the balance of a ring, and the keys moved by growing it. */
+	private static void ring(int servers, int vnodes, int n) {
+		String[] names = new String[servers + 1];
+		for (int s = 0; s <= servers; s++)
+			names[s] = "server" + s + ":30123";
+		int[] before = owners(Arrays.copyOf(names, servers), vnodes, n);
+		int[] after = owners(names, vnodes, n);
+		int[] count = new int[servers];
+		int moved = 0;
+		for (int i = 0; i < n; i++) {
+			count[before[i]]++;
+			if (after[i] != before[i]) moved++;
+		}
+		int max = 0, min = n;
+		for (int c : count) {
+			max = Math.max(max, c); min = Math.min(min, c);
+		}
+		double mean = (double) n / servers;
+		System.out.printf("%d servers, %d vnodes: keys per server "
+			+ "min %.3f max %.3f of the mean%n", servers, vnodes,
+			min / mean, max / mean);
+		System.out.printf("adding a server moves %.4f of the keys "
+			+ "(ideal %.4f)%n", (double) moved / n,
+			1.0 / (servers + 1));
+	}
+
+	// state of the snapshot benchmark, shared with its writer thread
+	private static volatile boolean running, snapping;
+
+	/** Measure the latency of changes while a snapshot is written. */
+	private static void snapshot(File f, int n) throws Exception {
+		SnapshotStore store = new SnapshotStore(new HeapStore());
+		byte[] value = "vvvvvvvvvvvvvvvv".getBytes(StandardCharsets.US_ASCII);
+		byte[] other = "wwwwwwwwwwwwwwww".getBytes(StandardCharsets.US_ASCII);
+		ByteKey key = new ByteKey();
+		for (int i = 0; i < n; i++) {
+			byte[] k = ("key" + i).getBytes(StandardCharsets.US_ASCII);
+			store.put(key.set(k, 0, k.length), value, 0, value.length);
+		}
+
+		// 1. Change pairs, add and remove others, during a snapshot
+		// and for as long again without one
+		running = true;
+		Histogram idle = new Histogram(), busy = new Histogram();
+		Thread writer = new Thread(() -> {
+			java.util.Random rand = new java.util.Random();
+			ByteKey k = new ByteKey();
+			long i = 0;
+			while (running) {
+				byte[] b = ((i % 3 == 2 ? "new" : "key")
+					+ rand.nextInt(n))
+					.getBytes(StandardCharsets.US_ASCII);
+				Histogram h = snapping ? busy : idle;
+				long t0 = System.nanoTime();
+				if (i++ % 3 == 1) store.remove(k.set(b, 0, b.length));
+				else store.put(k.set(b, 0, b.length), other, 0,
+					       other.length);
+				h.record(System.nanoTime() - t0);
+			}
+		});
+		snapping = true;
+		writer.start();
+		long t0 = System.nanoTime();
+		long count = store.snapshot(f);
+		long ns = System.nanoTime() - t0;
+		snapping = false;
+		Thread.sleep(ns / 1000000);
+		running = false;
+		writer.join();
+
+		// 2. Check the snapshot
+		long[] wrong = new long[1];
+		long read = SnapshotStore.read(f, (k, v, off, len) -> {
+			if (len != value.length || v[off] != 'v'
+			    || k.length() < 3 || k.byteAt(0) != 'k')
+				wrong[0]++;
+		});
+		System.out.printf("snapshot of %d pairs in %.2f s, %d bytes, "
+			+ "%d pre-images saved; %d pairs read back, %d wrong%n",
+			count, ns / 1e9, f.length(), store.saved(), read,
+			wrong[0]);
+		System.out.println("change latency (ns) idle:     "
+				   + idle.summary(1));
+		System.out.println("change latency (ns) snapshot: "
+				   + busy.summary(1));
+	}
+
+	/** Time n gets of random keys "key<i>" in a store, in ns per get. */
+	private static double gets(MapStore store, int n) {
+		java.util.Random rand = new java.util.Random(1);
+		ByteKey key = new ByteKey();
+		byte[] out = new byte[256];
+		int found = 0;
+		long t0 = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			byte[] k = ("key" + rand.nextInt(n))
+				.getBytes(StandardCharsets.US_ASCII);
+			if (store.get(key.set(k, 0, k.length), out, 0) >= 0)
+				found++;
+		}
+		double ns = (double) (System.nanoTime() - t0) / n;
+		if (found != n) System.out.println("missing keys: " + (n - found));
+		return ns;
+	}
+
+	/** Compare the start of a server from each snapshot format. */
+	private static void mapped(File f, int n) throws Exception {
+		File compact = new File(f.getPath() + ".compact");
+		SnapshotStore source = new SnapshotStore(new HeapStore());
+		byte[] value = "vvvvvvvvvvvvvvvv".getBytes(StandardCharsets.US_ASCII);
+		ByteKey key = new ByteKey();
+		for (int i = 0; i < n; i++) {
+			byte[] k = ("key" + i).getBytes(StandardCharsets.US_ASCII);
+			source.put(key.set(k, 0, k.length), value, 0, value.length);
+		}
+		source.snapshot(compact, false);
+		source.snapshot(f, true);
+		source = null;
+		System.out.printf("%d pairs: compact %d bytes, mapped %d bytes%n",
+				  n, compact.length(), f.length());
+
+		long t0 = System.nanoTime();
+		HeapStore heap = new HeapStore();
+		SnapshotStore.read(compact, (k, v, off, len) ->
+				   heap.put(k, v, off, len));
+		double load = (System.nanoTime() - t0) / 1e6;
+		t0 = System.nanoTime();
+		MappedStore map = new MappedStore(f, new HeapStore());
+		double open = (System.nanoTime() - t0) / 1e6;
+		System.out.printf("ready after: compact %.1f ms, mapped %.1f ms%n",
+				  load, open);
+		System.out.printf("get (ns): heap %.0f, mapped %.0f%n",
+				  gets(heap, n), gets(map, n));
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("usage: MapBench alloc [ n ]");
+			System.out.println("       MapBench log dir "
+					   + "[ n [ threads ] ]");
+			System.out.println("       MapBench memory "
+					   + "heap|offheap [ n ]");
+			System.out.println("       MapBench ring "
+					   + "[ servers [ vnodes [ n ] ] ]");
+			System.out.println("       MapBench snapshot file [ n ]");
+			System.out.println("       MapBench mapped file [ n ]");
+			System.exit(1);
+		}
+		int n = 1000000;
+		if (args[0].equals("log")) {
+			File dir = new File(args[1]);
+			n = 100000; int threads = 4;
+			if (args.length > 2) n = Integer.parseInt(args[2]);
+			if (args.length > 3) threads = Integer.parseInt(args[3]);
+			log(dir, MapLog.NONE, "none", n, threads);
+			log(dir, MapLog.BATCH, "batch", n, threads);
+			log(dir, MapLog.WRITE, "write", n / 10, threads);
+			return;
+		}
+		if (args[0].equals("memory")) {
+			if (args.length > 2) n = Integer.parseInt(args[2]);
+			memory(args[1], n);
+			return;
+		}
+		if (args[0].equals("snapshot")) {
+			if (args.length > 2) n = Integer.parseInt(args[2]);
+			snapshot(new File(args[1]), n);
+			return;
+		}
+		if (args[0].equals("mapped")) {
+			if (args.length > 2) n = Integer.parseInt(args[2]);
+			mapped(new File(args[1]), n);
+			return;
+		}
+		if (args[0].equals("ring")) {
+			int servers = 4, vnodes = MapCluster.DEFAULT_VNODES;
+			if (args.length > 1) servers = Integer.parseInt(args[1]);
+			if (args.length > 2) vnodes = Integer.parseInt(args[2]);
+			if (args.length > 3) n = Integer.parseInt(args[3]);
+			ring(servers, vnodes, n);
+			return;
+		}
+		if (args.length > 1) n = Integer.parseInt(args[1]);
+
+		if (args[0].equals("alloc")) {
+			int keys = 1000;
+			alloc("put", "put:key", ":value", keys, n);
+			alloc("get hit", "get:key", "", keys, n);
+			alloc("get miss", "get:nokey", "", keys, n);
+		} else {
+			System.out.println("MapBench: unknown benchmark "
+					   + args[0]);
+			System.exit(1);
+		}
+	}
+}
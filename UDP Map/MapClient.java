@@ -3,6 +3,12 @@
  * Date created: September 1
  * Date last modified: September 2
  * Usage: MapClient hostname port method argument1 (argument2)
+ *        MapClient hostname port batch
+ *        MapClient hostname port load [option=value ...]
+ *        MapClient hostname port scan [prefix [limit]]
+ *        MapClient hostname port near [option=value ...]
+ *        MapClient cluster host:port[,host:port...] batch
+ *        MapClient cluster host:port[,host:port...] bench [option=value ...]
  *
  * Description: The client sends a request (a UDP packet) to the server
  * and prints the message (the payload of a UDP packet) returned by the server.
@@ -12,13 +18,526 @@
  * get:k	- returns the value of the key=k if key=k exists
  * put:k:v 	- adds the pair (k,v) (if key=k exists, replaces the value)
  * remove:k - deletes the pair (k,v) if key=k exists
+ * promote	- makes a backup server a primary (no argument)
+ *
+ * A value of the form @file stands for the contents of the file. Values
+ * may be larger than a packet: a request or reply that does not fit in
+ * one is sent in fragments (see Fragments), up to 1 MB.
+ *
+ * In batch mode, the client reads requests from stdin, one per line
+ * (e.g. "put:k:v"), packs as many of them as fit into a single packet,
+ * and prints the responses, one per line, in the same order.
+ *
+ * In load mode, the client generates requests as fast as the server
+ * answers them, keeping a fixed number of requests outstanding. Each
+ * request is tagged with an id ("17#get:k"), which the server copies
+ * into its reply, so that replies can be matched with requests. At the
+ * end, the client prints the throughput and latency percentiles (of
+ * the requests served, not of those the server rejected as busy). The
+ * options are
+ * outstanding=N	number of requests in flight (default 16)
+ * requests=N		number of requests to complete (default 100000)
+ * keys=N		number of distinct keys (default 10000)
+ * dist=uniform|zipf	key popularity distribution (default uniform)
+ * get=F		fraction of requests that are gets, the others
+ *			being puts (default 0.9)
+ * value=N		length of the values that are put (default 16)
+ * timeout=MS		time after which a request is retransmitted, or
+ *			considered lost and replaced by a new one (default 200)
+ * retries=N		number of times a request is retransmitted, with the
+ *			same tag, before it is considered lost (default 0);
+ *			use with a server that detects duplicates (dedup)
+ * The keys are first loaded into the server using batches, each one
+ * retransmitted until it gets its reply.
+ *
+ * In scan mode, the client prints the pairs whose key starts with
+ * prefix (all the pairs by default), in key order, up to limit pairs
+ * (no limit by default). The server must keep a sorted index (option
+ * index=sorted); it returns a page of pairs per request, and the client
+ * requests the following pages with the continuation token of the last
+ * one, retransmitting a request that gets no reply, or a busy one. Each
+ * page request is tagged with its number, and the replies with another
+ * tag (late replies to earlier requests) are ignored.
+ *
+ * In near mode, the client generates requests one at a time through a
+ * NearCache, which answers gets from a local cache of the values, kept
+ * up to date by the invalidations the server sends when the keys
+ * change (see Watches), and prints the throughput, latency, hit ratio
+ * and invalidations received. Keys changed by other clients (e.g. in
+ * load mode) are invalidated too. The options are those of load mode
+ * (requests, keys, dist, get, value), and
+ * cache=N		memory of the cache, in bytes (default 1000000)
+ * lease=MS		time a value is kept, at most the server's lease
+ *			(its option lease, also in ms; default 10000)
+ *
+ * In cluster mode, the keys are spread over several servers by
+ * consistent hashing (see MapCluster, which can also be used as a
+ * library). The batch mode is as above, but every batch of requests is
+ * scattered over the servers owning the keys, in parallel. The bench
+ * mode loads keys into the servers, then executes batches of random
+ * requests and prints the throughput and the requests per server; the
+ * options are
+ * requests=N		number of requests (default 1000000)
+ * keys=N		number of distinct keys (default 10000)
+ * batch=N		number of requests per call of execute (default 1000)
+ * get=F		fraction of requests that are gets (default 0.9)
+ * value=N		length of the values that are put (default 16)
+ * vnodes=N		ring points per server (default 160)
  */
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 public class MapClient {
+	// Replies being reassembled from fragments
+	private static Fragments fragments = new Fragments(1 << 24, 2000);
+	// First tag of the batches loading the keys
+	private static final long PRELOAD_TAG = 1000000000000000L;
+
+	// Send one batch of requests and return the responses
+	private static String sendBatch(DatagramSocket sock, InetAddress serverAdr,
+			int port, StringBuilder batch) throws Exception {
+		byte[] outBuf = batch.toString().getBytes("US-ASCII");
+		Fragments.send(sock, new DatagramPacket(outBuf, outBuf.length,
+			serverAdr, port), outBuf, outBuf.length);
+		// replies may be larger than requests (get), so leave room
+		byte[] inBuf = new byte[65535];
+		DatagramPacket inPkt = new DatagramPacket(inBuf, inBuf.length);
+		int len = fragments.receive(sock, inPkt);
+		return new String(fragments.data(), 0, len, "US-ASCII");
+	}
+
+	// Read requests from stdin and send them in batches
+	private static void batchMode(DatagramSocket sock, InetAddress serverAdr,
+				      int port) throws Exception {
+		BufferedReader sin = new BufferedReader(new InputStreamReader(
+			System.in, "US-ASCII"));
+		StringBuilder batch = new StringBuilder("batch");
+		int count = 0; // number of requests in batch
+		String line;
+		while ((line = sin.readLine()) != null) {
+			if (line.length() == 0) continue;
+			// send the batch if this request doesn't fit any more
+			if (count > 0 &&
+			    batch.length() + 1 + line.length()
+			    > Fragments.MAX_PACKET) {
+				System.out.println(
+					sendBatch(sock, serverAdr, port, batch));
+				batch.setLength(5); count = 0;
+			}
+			batch.append('\n').append(line); count++;
+		}
+		if (count > 0)
+			System.out.println(sendBatch(sock, serverAdr, port, batch));
+	}
+
+	// Load the keys key0..key<keys-1>, with the given value, in batches
+	private static void preload(DatagramSocket sock, InetAddress serverAdr,
+			int port, int keys, String value) throws Exception {
+		sock.setSoTimeout(1000);
+		// tags beyond those of the requests of load mode, whose
+		// replies may come late
+		long tag = PRELOAD_TAG;
+		StringBuilder batch = new StringBuilder();
+		for (int k = 0; k < keys; k++) {
+			String line = "put:key" + k + ":" + value;
+			if (batch.length() > 0 &&
+			    String.valueOf(tag).length() + 6 + batch.length()
+			    + 1 + line.length() > Fragments.MAX_PACKET) {
+				preloadBatch(sock, serverAdr, port, tag++, batch);
+				batch.setLength(0);
+			}
+			batch.append('\n').append(line);
+		}
+		if (batch.length() > 0)
+			preloadBatch(sock, serverAdr, port, tag, batch);
+	}
+
+	// Send a batch of puts, tagged, until it gets its reply; retransmit
+	// it if it gets no reply in time, or a busy one
+	private static void preloadBatch(DatagramSocket sock,
+			InetAddress serverAdr, int port, long tag,
+			StringBuilder lines) throws Exception {
+		byte[] outBuf = (tag + "#batch" + lines).getBytes("US-ASCII");
+		String mine = tag + "#";
+		byte[] inBuf = new byte[65535];
+		DatagramPacket inPkt = new DatagramPacket(inBuf, inBuf.length);
+		for (int tries = 0; ; ) {
+			Fragments.send(sock, new DatagramPacket(outBuf,
+				outBuf.length, serverAdr, port),
+				outBuf, outBuf.length);
+			try {
+				String reply;
+				do { // skip the late replies to earlier batches
+					int len = fragments.receive(sock, inPkt);
+					reply = new String(fragments.data(), 0,
+							   len, "US-ASCII");
+				} while (!reply.startsWith(mine));
+				if (!reply.equals(mine + "busy")) return;
+				Thread.sleep(10);
+			} catch(SocketTimeoutException e) {
+				if (++tries == 5) throw e;
+			}
+		}
+	}
+
+	// Build the payload of the request with the given tag
+	private static byte[] request(long tag, boolean get, int key,
+				      String value) throws Exception {
+		String payload = tag + (get ? "#get:key" : "#put:key") + key;
+		if (!get) payload += ":" + value;
+		return payload.getBytes("US-ASCII");
+	}
+
+	// Generate load, with a number of requests outstanding at all times,
+	// and report the throughput and latency
+	private static void loadMode(DatagramSocket sock, InetAddress serverAdr,
+			int port, String[] opts) throws Exception {
+		int outstanding = 16, requests = 100000, keys = 10000;
+		int valueLen = 16, timeout = 200, retries = 0;
+		double getRatio = 0.9; boolean zipf = false;
+		for (String opt : opts) {
+			String[] kv = opt.split("=");
+			if (kv[0].equals("outstanding"))
+				outstanding = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("requests"))
+				requests = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("keys"))
+				keys = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("dist"))
+				zipf = kv[1].equals("zipf");
+			else if (kv[0].equals("get"))
+				getRatio = Double.parseDouble(kv[1]);
+			else if (kv[0].equals("value"))
+				valueLen = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("timeout"))
+				timeout = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("retries"))
+				retries = Integer.parseInt(kv[1]);
+			else {
+				System.err.println("MapClient: unknown option "
+						   + opt);
+				System.exit(1);
+			}
+		}
+		char[] vchars = new char[valueLen];
+		Arrays.fill(vchars, 'v');
+		String value = new String(vchars);
+		Random rand = new Random();
+		Zipf zipfGen = zipf ? new Zipf(keys, 0.99, rand) : null;
+
+		// 1. Load the keys, so that gets find them
+		preload(sock, serverAdr, port, keys, value);
+
+		// 2. Keep "outstanding" requests in flight; the request in slot
+		// s has a tag equal to s modulo outstanding
+		long[] tags = new long[outstanding];	// tag of request in slot
+		long[] sentAt = new long[outstanding];	// time it was sent
+		long[] lastSent = new long[outstanding]; // time of last retry
+		int[] tries = new int[outstanding];	// retransmissions so far
+		byte[][] payloads = new byte[outstanding][];
+		boolean[] isGet = new boolean[outstanding];
+		Histogram getLat = new Histogram(), putLat = new Histogram();
+		long timeoutNs = timeout * 1000000L;
+		int sent = 0, done = 0, lost = 0, retried = 0, busy = 0;
+		DatagramPacket outPkt = new DatagramPacket(new byte[0], 0,
+							   serverAdr, port);
+		byte[] inBuf = new byte[65535];
+		DatagramPacket inPkt = new DatagramPacket(inBuf, inBuf.length);
+		sock.setSoTimeout(Math.max(1, timeout / 4));
+
+		long t0 = System.nanoTime();
+		for (int s = 0; s < outstanding; s++)
+			tags[s] = s - outstanding; // first tag will be s
+		boolean[] idle = new boolean[outstanding];
+		Arrays.fill(idle, true);
+		long lastCheck = t0;
+		while (done + lost + busy < requests) {
+			// fill the idle slots with new requests
+			for (int s = 0; s < outstanding; s++) {
+				if (!idle[s] || sent >= requests) continue;
+				int key = zipf ? zipfGen.next() : rand.nextInt(keys);
+				isGet[s] = rand.nextDouble() < getRatio;
+				tags[s] += outstanding;
+				payloads[s] = request(tags[s], isGet[s], key, value);
+				sentAt[s] = lastSent[s] = System.nanoTime();
+				tries[s] = 0;
+				Fragments.send(sock, outPkt, payloads[s],
+					       payloads[s].length);
+				idle[s] = false; sent++;
+			}
+			// wait for a reply, and match it with its request
+			try {
+				int len = fragments.receive(sock, inPkt);
+				byte[] in = fragments.data();
+				long now = System.nanoTime();
+				long tag = 0; int i = 0;
+				while (i < len && in[i] != '#')
+					tag = 10 * tag + (in[i++] - '0');
+				int s = (int) (tag % outstanding);
+				if (!idle[s] && tags[s] == tag) {
+					idle[s] = true;
+					// an overloaded server rejects requests
+					if (len == i + 5 && in[i + 1] == 'b') {
+						busy++;
+					} else {
+						(isGet[s] ? getLat : putLat)
+							.record(now - sentAt[s]);
+						done++;
+					}
+				}
+			} catch(SocketTimeoutException e) {
+				// check for lost requests below
+			}
+			// retry, or give up on, requests that have waited too long
+			long now = System.nanoTime();
+			if (now - lastCheck > timeoutNs / 4) {
+				for (int s = 0; s < outstanding; s++) {
+					if (idle[s] || now - lastSent[s] <= timeoutNs)
+						continue;
+					if (tries[s] < retries) {
+						Fragments.send(sock, outPkt,
+							payloads[s],
+							payloads[s].length);
+						lastSent[s] = now;
+						tries[s]++; retried++;
+					} else {
+						idle[s] = true; lost++;
+					}
+				}
+				lastCheck = now;
+			}
+		}
+		double secs = (System.nanoTime() - t0) / 1e9;
+
+		// 3. Report
+		Histogram all = new Histogram();
+		all.add(getLat); all.add(putLat);
+		System.out.printf("%d requests in %.2f s: %.0f requests/sec, "
+			+ "%d retransmitted, %d lost, %d busy%n",
+			done, secs, done / secs, retried, lost, busy);
+		System.out.println("latency (us) all: " + all.summary(1000));
+		System.out.println("latency (us) get: " + getLat.summary(1000));
+		System.out.println("latency (us) put: " + putLat.summary(1000));
+	}
+
+	// Generate requests through a near cache, and report the throughput,
+	// latency and hit ratio
+	private static void nearMode(DatagramSocket sock, InetAddress serverAdr,
+			int port, String[] opts) throws Exception {
+		int requests = 100000, keys = 10000, valueLen = 16;
+		long cacheBytes = 1000000, lease = 10000;
+		double getRatio = 0.9; boolean zipf = false;
+		for (String opt : opts) {
+			String[] kv = opt.split("=");
+			if (kv[0].equals("requests"))
+				requests = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("keys"))
+				keys = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("dist"))
+				zipf = kv[1].equals("zipf");
+			else if (kv[0].equals("get"))
+				getRatio = Double.parseDouble(kv[1]);
+			else if (kv[0].equals("value"))
+				valueLen = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("cache"))
+				cacheBytes = Long.parseLong(kv[1]);
+			else if (kv[0].equals("lease"))
+				lease = Long.parseLong(kv[1]);
+			else {
+				System.err.println("MapClient: unknown option "
+						   + opt);
+				System.exit(1);
+			}
+		}
+		char[] vchars = new char[valueLen];
+		Arrays.fill(vchars, 'v');
+		String value = new String(vchars);
+		Random rand = new Random();
+		Zipf zipfGen = zipf ? new Zipf(keys, 0.99, rand) : null;
+
+		// 1. Load the keys, so that gets find them
+		preload(sock, serverAdr, port, keys, value);
+
+		// 2. Send the requests through the cache, one at a time
+		NearCache cache = new NearCache(serverAdr.getHostAddress(), port,
+						cacheBytes, lease);
+		Histogram getLat = new Histogram(), putLat = new Histogram();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			int key = zipf ? zipfGen.next() : rand.nextInt(keys);
+			boolean get = rand.nextDouble() < getRatio;
+			long t = System.nanoTime();
+			if (get) cache.get("key" + key);
+			else cache.put("key" + key, value);
+			(get ? getLat : putLat).record(System.nanoTime() - t);
+		}
+		double secs = (System.nanoTime() - t0) / 1e9;
+
+		// 3. Report
+		long hits = cache.hits(), gets = hits + cache.misses();
+		System.out.printf("%d requests in %.2f s: %.0f requests/sec%n",
+				  requests, secs, requests / secs);
+		System.out.printf("near cache: hit ratio %.3f, %d "
+			+ "invalidations, %d keys in %d bytes%n",
+			gets == 0 ? 0.0 : (double) hits / gets,
+			cache.invalidations(), cache.size(), cache.bytes());
+		System.out.println("latency (us) get: " + getLat.summary(1000));
+		System.out.println("latency (us) put: " + putLat.summary(1000));
+		cache.close();
+	}
+
+	// Print the pairs whose key starts with prefix, up to limit of them,
+	// one page at a time
+	private static void scanMode(DatagramSocket sock, InetAddress serverAdr,
+			int port, String prefix, long limit) throws Exception {
+		byte[] inBuf = new byte[65535];
+		DatagramPacket inPkt = new DatagramPacket(inBuf, inBuf.length);
+		sock.setSoTimeout(1000);
+		String token = null;
+		for (long page = 0; limit > 0; page++) {
+			// tagged, so that a late reply to an earlier transmission
+			// is not taken for this page
+			String mine = page + "#";
+			String request = mine + "scan:" + prefix + ":"
+				+ Math.min(limit, 100000000)
+				+ (token == null ? "" : ":" + token);
+			byte[] outBuf = request.getBytes("US-ASCII");
+			String reply = null;
+			for (int tries = 0; reply == null; ) {
+				sock.send(new DatagramPacket(outBuf, outBuf.length,
+							     serverAdr, port));
+				try {
+					do {
+						int len = fragments.receive(sock,
+									    inPkt);
+						reply = new String(fragments.data(),
+							0, len, "US-ASCII");
+					} while (!reply.startsWith(mine));
+					reply = reply.substring(mine.length());
+					if (reply.equals("busy")) { // send it again
+						reply = null;
+						Thread.sleep(10);
+					}
+				} catch (SocketTimeoutException e) {
+					if (++tries == 5) throw e;
+					reply = null;
+				}
+			}
+			if (reply.startsWith("Error")) {
+				System.err.println("MapClient: " + reply);
+				System.exit(1);
+			}
+			String[] lines = reply.split("\n");
+			for (int i = 0; i < lines.length - 1; i++)
+				System.out.println(lines[i]);
+			limit -= lines.length - 1;
+			String last = lines[lines.length - 1];
+			if (!last.startsWith("next:")) break;
+			token = last.substring(5);
+		}
+	}
+
+	// Execute requests read from stdin, or a benchmark, on a cluster
+	private static void clusterMode(String[] servers, String[] args)
+							throws Exception {
+		int requests = 1000000, keys = 10000, batch = 1000;
+		int valueLen = 16, vnodes = MapCluster.DEFAULT_VNODES;
+		double getRatio = 0.9;
+		for (String opt : Arrays.copyOfRange(args, 1, args.length)) {
+			String[] kv = opt.split("=");
+			if (kv[0].equals("requests"))
+				requests = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("keys"))
+				keys = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("batch"))
+				batch = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("get"))
+				getRatio = Double.parseDouble(kv[1]);
+			else if (kv[0].equals("value"))
+				valueLen = Integer.parseInt(kv[1]);
+			else if (kv[0].equals("vnodes"))
+				vnodes = Integer.parseInt(kv[1]);
+			else {
+				System.err.println("MapClient: unknown option "
+						   + opt);
+				System.exit(1);
+			}
+		}
+		MapCluster cluster = new MapCluster(servers, vnodes);
+
+		if (args[0].equals("batch")) {
+			BufferedReader sin = new BufferedReader(
+				new InputStreamReader(System.in, "US-ASCII"));
+			ArrayList<String> lines = new ArrayList<>();
+			String line;
+			while ((line = sin.readLine()) != null) {
+				if (line.length() > 0) lines.add(line);
+				if (lines.size() == batch) {
+					for (String r : cluster.execute(
+						lines.toArray(new String[0])))
+						System.out.println(r);
+					lines.clear();
+				}
+			}
+			if (lines.size() > 0)
+				for (String r : cluster.execute(
+						lines.toArray(new String[0])))
+					System.out.println(r);
+			cluster.close();
+			return;
+		}
+
+		// 1. Load the keys, and count the keys of each server
+		char[] vchars = new char[valueLen];
+		Arrays.fill(vchars, 'v');
+		String value = new String(vchars);
+		int[] owned = new int[servers.length];
+		String[] reqs = new String[batch];
+		for (int k = 0; k < keys; k += batch) {
+			int n = Math.min(batch, keys - k);
+			for (int i = 0; i < n; i++) {
+				reqs[i] = "put:key" + (k + i) + ":" + value;
+				owned[cluster.serverOf("key" + (k + i))]++;
+			}
+			cluster.execute(Arrays.copyOf(reqs, n));
+		}
+
+		// 2. Execute random requests, one batch at a time
+		Random rand = new Random();
+		int[] served = new int[servers.length];
+		long t0 = System.nanoTime();
+		for (int done = 0; done < requests; done += batch) {
+			for (int i = 0; i < batch; i++) {
+				int k = rand.nextInt(keys);
+				served[cluster.serverOf("key" + k)]++;
+				reqs[i] = rand.nextDouble() < getRatio ?
+					"get:key" + k : "put:key" + k + ":" + value;
+			}
+			cluster.execute(reqs);
+		}
+		double secs = (System.nanoTime() - t0) / 1e9;
+		long total = (long) (requests + batch - 1) / batch * batch;
+		System.out.printf("%d servers: %d requests in %.2f s: "
+			+ "%.0f requests/sec, %d batches retransmitted%n",
+			servers.length, total, secs, total / secs,
+			cluster.retransmitted());
+		for (int s = 0; s < servers.length; s++)
+			System.out.println(cluster.server(s) + ": " + owned[s]
+				+ " keys, " + served[s] + " requests");
+		cluster.close();
+	}
+
 	public static void main(String args[]) throws Exception {
+		if (args[0].equals("cluster")) {
+			clusterMode(args[1].split(","),
+				    Arrays.copyOfRange(args, 2, args.length));
+			return;
+		}
+
 		// 1. Get server address and port number
 		InetAddress serverAdr = InetAddress.getByName(args[0]);
 		int port = Integer.parseInt(args[1]);
@@ -26,28 +545,60 @@ public class MapClient {
 		// 2. Open UDP socket
 		DatagramSocket sock = new DatagramSocket();
 
+		if (args[2].equals("batch")) {
+			batchMode(sock, serverAdr, port);
+			sock.close();
+			return;
+		} else if (args[2].equals("scan")) {
+			scanMode(sock, serverAdr, port,
+				 args.length > 3 ? args[3] : "",
+				 args.length > 4 ? Long.parseLong(args[4])
+						 : Long.MAX_VALUE);
+			sock.close();
+			return;
+		} else if (args[2].equals("near")) {
+			nearMode(sock, serverAdr, port,
+				 Arrays.copyOfRange(args, 3, args.length));
+			sock.close();
+			return;
+		} else if (args[2].equals("load")) {
+			loadMode(sock, serverAdr, port,
+				 Arrays.copyOfRange(args, 3, args.length));
+			sock.close();
+			return;
+		}
+
 		// 3. Build packet addressed to server, encoded using US-ASCII Charset
 		String operation = args[2]; // operation = get, put, or remove
-		String key = args[3];
-		String payload = operation + ":" + key;
-		// value field required for put operation
-		if (args.length > 4) payload = payload + ":" + args[4];
+		// (or a command without arguments, such as promote)
+		String payload = operation;
+		if (args.length > 3) payload = payload + ":" + args[3];
+		// value field required for put operation; @file stands for
+		// the contents of the file
+		if (args.length > 4) {
+			String value = args[4];
+			if (value.startsWith("@"))
+				value = new String(java.nio.file.Files.readAllBytes(
+					new File(value.substring(1)).toPath()),
+					"US-ASCII");
+			payload = payload + ":" + value;
+		}
 		byte[] outBuf = payload.getBytes("US-ASCII");
 		DatagramPacket outPkt = new DatagramPacket(outBuf, outBuf.length, 
 							   serverAdr, port);
-		// Send packet to server
-		sock.send(outPkt);
+		// Send packet to server, in fragments if it is too long
+		Fragments.send(sock, outPkt, outBuf, outBuf.length);
 
 		// 4. Create buffer and packet for reply
-		byte[] inBuf = new byte[1000];
+		byte[] inBuf = new byte[Fragments.MAX_PACKET];
 		DatagramPacket inPkt = new DatagramPacket(inBuf, inBuf.length);
-		// Wait for reply
-		sock.receive(inPkt);
+		// Wait for reply, reassembling it if it comes in fragments
+		int len = fragments.receive(sock, inPkt);
 
-		// 5. Print the payload of the packet received from the server
-		String reply = new String(inBuf, 0, inPkt.getLength(), "US-ASCII");
+		// 5. Print the payload of the message received from the server
+		String reply = new String(fragments.data(), 0, len, "US-ASCII");
 		System.out.println(reply);
 		// Close socket
 		sock.close();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,254 @@
+/** Client for a fleet of MapServers that share the keys.
+ *
+ *  Every key belongs to one server, chosen by consistent hashing: each
+ *  server is placed at a number of points ("virtual nodes") on a ring
+ *  of 64 bit hash values, and a key belongs to the server owning the
+ *  first point at or after the key's hash. With enough virtual nodes,
+ *  the keys are spread evenly, and adding a server to N others moves
+ *  only about 1/(N+1) of the keys (those now falling just before the
+ *  new server's points); removing a server moves only its own keys.
+ *
+ *  The requests of execute() are scattered over the servers: the ones
+ *  for each server are packed into tagged batches, which are all sent
+ *  before any reply is awaited, so the servers work in parallel. The
+ *  replies are then gathered, in any order, and a batch without a reply
+ *  after the timeout is sent again (with the same tag, so a server that
+ *  detects duplicates does not execute it twice). A MapCluster uses a
+ *  single socket and is not meant to be shared by threads; each thread
+ *  should have its own.
+ *
+ *  Example:
+ *	MapCluster c = new MapCluster(new String[] { "h1:30123", "h2:30123" });
+ *	c.put("k", "v");
+ *	String[] r = c.execute(new String[] { "get:k", "get:x" });
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class MapCluster {
+	public static final int DEFAULT_VNODES = 160;
+
+	private InetSocketAddress[] servers;
+	private long[] points;		// ring points, sorted
+	private int[] owners;		// owners[i] is the server at points[i]
+
+	private DatagramSocket sock;
+	private Fragments fragments = new Fragments(1 << 24, 2000);
+	private int timeout = 200;	// ms before a batch is sent again
+	private int retries = 5;	// times a batch is sent again
+	private long nextTag = 1;
+	private long retransmitted = 0;
+
+	/** A batch of requests sent to one server. */
+	private static class Batch {
+		int server;
+		long tag;
+		byte[] payload;
+		int[] requests;		// index of each request in the batch
+		int count;
+		boolean done;
+	}
+
+	/** Create a client for the given servers.
+	 *  @param servers are the server addresses, as "host:port"
+	 *  @param vnodes is the number of ring points per server
+	 */
+	public MapCluster(String[] servers, int vnodes) throws IOException {
+		this.servers = new InetSocketAddress[servers.length];
+		for (int i = 0; i < servers.length; i++) {
+			int colon = servers[i].lastIndexOf(':');
+			this.servers[i] = new InetSocketAddress(
+				servers[i].substring(0, colon),
+				Integer.parseInt(servers[i].substring(colon + 1)));
+		}
+		points = ring(servers, vnodes);
+		owners = new int[points.length];
+		// the owner of a point is kept in its low bits (see ring())
+		for (int i = 0; i < points.length; i++)
+			owners[i] = (int) (points[i] & 0xffff);
+		sock = new DatagramSocket();
+		sock.setSoTimeout(timeout);
+	}
+
+	public MapCluster(String[] servers) throws IOException {
+		this(servers, DEFAULT_VNODES);
+	}
+
+	/** Compute the sorted ring points of the servers. Each point is the
+	 *  hash of "server#i", with its low 16 bits replaced by the index of
+	 *  the server, which keeps the owner with the point when sorting and
+	 *  breaks ties between servers consistently.
+	 */
+	static long[] ring(String[] servers, int vnodes) {
+		long[] points = new long[servers.length * vnodes];
+		for (int s = 0; s < servers.length; s++)
+			for (int v = 0; v < vnodes; v++) {
+				byte[] b = (servers[s] + "#" + v)
+					.getBytes(StandardCharsets.US_ASCII);
+				points[s * vnodes + v] =
+					(hash(b, 0, b.length) & ~0xffffL) | s;
+			}
+		Arrays.sort(points);
+		return points;
+	}
+
+	/** Return the index of the point owning a key hash on a ring. */
+	static int point(long[] points, long hash) {
+		int i = Arrays.binarySearch(points, hash);
+		if (i < 0) i = -i - 1;
+		return i == points.length ? 0 : i; // wrap around
+	}
+
+	/** 64 bit FNV-1a hash of b[off..off+len), with a final mix so that
+	 *  similar keys land far apart on the ring.
+	 */
+	static long hash(byte[] b, int off, int len) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = off; i < off + len; i++)
+			h = (h ^ (b[i] & 0xff)) * 0x100000001b3L;
+		h ^= h >>> 33;	// finalizer of MurmurHash3
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** Return the index of the server owning a key. */
+	public int serverOf(String key) {
+		byte[] b = key.getBytes(StandardCharsets.US_ASCII);
+		return owners[point(points, hash(b, 0, b.length))];
+	}
+
+	/** Return the address of server i. */
+	public InetSocketAddress server(int i) { return servers[i]; }
+
+	public int servers() { return servers.length; }
+
+	/** Set the time before a batch is sent again, and how many times. */
+	public void setTimeout(int ms, int retries) throws IOException {
+		timeout = ms; this.retries = retries;
+		sock.setSoTimeout(ms);
+	}
+
+	/** Return the number of batches sent again so far. */
+	public long retransmitted() { return retransmitted; }
+
+	public String get(String key) throws IOException {
+		return execute(new String[] { "get:" + key })[0];
+	}
+
+	public String put(String key, String value) throws IOException {
+		return execute(new String[] { "put:" + key + ":" + value })[0];
+	}
+
+	public String remove(String key) throws IOException {
+		return execute(new String[] { "remove:" + key })[0];
+	}
+
+	/** Execute requests (such as "get:k") on the servers owning their
+	 *  keys, in parallel, and return the responses in the same order.
+	 *  A request that is not well formed is sent to the first server,
+	 *  which rejects it.
+	 *  @throws SocketTimeoutException if a server does not reply
+	 */
+	public String[] execute(String[] requests) throws IOException {
+		// 1. Pack the requests of each server into batches
+		ArrayList<Batch> batches = new ArrayList<>();
+		Batch[] open = new Batch[servers.length];
+		StringBuilder[] text = new StringBuilder[servers.length];
+		for (int r = 0; r < requests.length; r++) {
+			String req = requests[r];
+			int colon1 = req.indexOf(':');
+			int colon2 = req.indexOf(':', colon1 + 1);
+			int s = colon1 < 0 ? 0 : serverOf(colon2 < 0 ?
+				req.substring(colon1 + 1) :
+				req.substring(colon1 + 1, colon2));
+			Batch b = open[s];
+			if (b != null && text[s].length() + 1 + req.length()
+					 > Fragments.MAX_PACKET) {
+				finish(b, text[s]);
+				b = null;
+			}
+			if (b == null) {
+				b = open[s] = new Batch();
+				b.server = s;
+				b.tag = nextTag++;
+				b.requests = new int[16];
+				text[s] = new StringBuilder()
+					.append(b.tag).append("#batch");
+				batches.add(b);
+			}
+			if (b.count == b.requests.length)
+				b.requests = Arrays.copyOf(b.requests, 2 * b.count);
+			b.requests[b.count++] = r;
+			text[s].append('\n').append(req);
+		}
+		for (int s = 0; s < servers.length; s++)
+			if (open[s] != null) finish(open[s], text[s]);
+
+		// 2. Send them all, then gather the replies
+		for (Batch b : batches) send(b);
+		String[] responses = new String[requests.length];
+		byte[] inBuf = new byte[65535];
+		DatagramPacket inPkt = new DatagramPacket(inBuf, inBuf.length);
+		int len;
+		int pending = batches.size();
+		int tries = 0;
+		long firstTag = batches.isEmpty() ? 0 : batches.get(0).tag;
+		while (pending > 0) {
+			try {
+				len = fragments.receive(sock, inPkt);
+			} catch (SocketTimeoutException e) {
+				if (tries++ == retries) throw e;
+				for (Batch b : batches)
+					if (!b.done) {
+						send(b);
+						retransmitted++;
+					}
+				continue;
+			}
+			String reply = new String(fragments.data(), 0, len,
+						  StandardCharsets.US_ASCII);
+			int hash = reply.indexOf('#');
+			if (hash < 0) continue;
+			long tag;
+			try {
+				tag = Long.parseLong(reply.substring(0, hash));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			// a late reply to an earlier call is ignored
+			if (tag < firstTag || tag >= nextTag) continue;
+			Batch b = batches.get((int) (tag - firstTag));
+			if (b.done) continue;
+			b.done = true;
+			pending--;
+			String[] lines = reply.substring(hash + 1).split("\n", -1);
+			for (int i = 0; i < b.count; i++)
+				responses[b.requests[i]] = i < lines.length ?
+					lines[i] : lines[lines.length - 1];
+		}
+		return responses;
+	}
+
+	private void finish(Batch b, StringBuilder text) {
+		b.payload = text.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private void send(Batch b) throws IOException {
+		// a batch holding a single large request is sent in fragments
+		Fragments.send(sock, new DatagramPacket(b.payload,
+			b.payload.length, servers[b.server]), b.payload,
+			b.payload.length);
+	}
+
+	public void close() { sock.close(); }
+}
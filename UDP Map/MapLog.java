@@ -0,0 +1,390 @@
+/** Write-ahead log of the changes made to the map, with snapshots.
+ *
+ *  Every put and remove is appended to the log as a record
+ *  (type, key length, value length, key, value, CRC32); for a put with
+ *  an expiration time, the value field starts with the deadline (8
+ *  bytes, ms since the epoch). The log is
+ *  kept in a directory, as a sequence of files log.<gen>; a snapshot
+ *  file snap.<gen> holds all the pairs of the map at some point after
+ *  log.<gen> was started, so the map can be rebuilt by loading the
+ *  latest snapshot and replaying log files <gen> and up. Records are
+ *  idempotent (they carry the new value, not a change to the old one),
+ *  so the snapshot does not need to be taken at an exact point in the
+ *  log; a record that is already reflected in it does no harm when it
+ *  is replayed.
+ *
+ *  How durable the log is depends on the durability level:
+ *  NONE	records are written to the file by a background thread,
+ *		but never forced to disk; a crash of the process loses
+ *		nothing, a crash of the machine may lose recent changes
+ *  BATCH	the background thread writes and forces (fsync) all the
+ *		records appended since its last write, so that records
+ *		appended by many threads share one fsync (group commit);
+ *		commit() waits until the caller's records are on disk
+ *  WRITE	every record is written and forced before append()
+ *		returns, one fsync per change
+ *
+ *  A record whose CRC does not match, such as a record that was only
+ *  partly written when the machine crashed, ends the replay of a file.
+ *
+ *  The directory is forced too when a file is created or renamed in it,
+ *  so that a new log file, and a snapshot, survive a crash; the files a
+ *  snapshot makes useless are only deleted once it is. A snapshot left
+ *  unfinished by a crash (snap.<gen>.tmp) is deleted on recovery.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public class MapLog implements Runnable {
+	public static final int NONE = 0, BATCH = 1, WRITE = 2;
+	public static final byte PUT = 1, REMOVE = 2, PUT_TTL = 3;
+
+	private static final int HEADER = 9;	// type, key and value lengths
+	private static final int MAX_FIELD = 1 << 24; // sanity limit on lengths
+	private static final int SNAP_MAGIC = 0x4d415053; // "MAPS"
+
+	private File dir;		// directory holding the files
+	private int durability;		// NONE, BATCH or WRITE
+	private int gen;		// generation of the current log file
+	private FileChannel ch;		// current log file
+
+	// records appended but not yet written; guarded by this
+	private byte[] buf = new byte[1 << 16];
+	private int bufLen = 0;
+	private byte[] spare = new byte[1 << 16];
+	private CRC32 crc = new CRC32();
+	private long appended = 0;	// bytes appended so far
+	private long durable = 0;	// bytes written (and forced) so far
+
+	// held while writing to, or switching, the log file
+	private final Object ioLock = new Object();
+
+	// end of the last record appended by each thread
+	private ThreadLocal<long[]> mine = ThreadLocal.withInitial(
+						() -> new long[1]);
+
+	private Thread myThread;
+
+	/** Initialize a new MapLog.
+	 *  @param dir is the directory holding the log and snapshot files
+	 *  @param durability is NONE, BATCH or WRITE
+	 */
+	MapLog(File dir, int durability) {
+		this.dir = dir; this.durability = durability;
+		dir.mkdirs();
+	}
+
+	/** Return the generations of the files whose name is prefix.<gen>,
+	 *  in increasing order.
+	 */
+	private int[] generations(String prefix) {
+		String[] names = dir.list();
+		if (names == null) return new int[0];
+		return Arrays.stream(names)
+			.filter(n -> n.matches(prefix + "\\.[0-9]+"))
+			.mapToInt(n -> Integer.parseInt(
+					n.substring(prefix.length() + 1)))
+			.sorted().toArray();
+	}
+
+	/** Rebuild the map from the latest snapshot and the log files.
+	 *  Must be called before start().
+	 *  @param map is the (empty) map to fill
+	 *  @return the number of log records replayed
+	 */
+	public long recover(MapStore map) throws IOException {
+		String[] names = dir.list();
+		if (names != null)
+			for (String n : names)
+				if (n.matches("snap\\.[0-9]+\\.tmp"))
+					new File(dir, n).delete();
+		int[] snaps = generations("snap");
+		int from = 0;
+		if (snaps.length > 0) {
+			from = snaps[snaps.length - 1];
+			readSnapshot(new File(dir, "snap." + from), map);
+		}
+		long count = 0;
+		for (int g : generations("log")) {
+			gen = Math.max(gen, g);
+			if (g >= from)
+				count += replay(new File(dir, "log." + g), map);
+		}
+		return count;
+	}
+
+	/** Replay the records of one log file into map. */
+	private long replay(File f, MapStore map) throws IOException {
+		long count = 0;
+		try (DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(f)))) {
+			CRC32 check = new CRC32();
+			while (true) {
+				byte type; int klen, vlen;
+				try {
+					type = in.readByte();
+					klen = in.readInt(); vlen = in.readInt();
+				} catch(EOFException e) { break; }
+				if (klen < 0 || vlen < 0 ||
+				    klen > MAX_FIELD || vlen > MAX_FIELD)
+					break; // garbage at the end of the file
+				byte[] rec = new byte[HEADER + klen + vlen];
+				ByteBuffer.wrap(rec).put(type)
+					.putInt(klen).putInt(vlen);
+				int crcValue;
+				try {
+					in.readFully(rec, HEADER, klen + vlen);
+					crcValue = in.readInt();
+				} catch(EOFException e) { break; }
+				check.reset(); check.update(rec);
+				if ((int) check.getValue() != crcValue) break;
+
+				ByteKey key = new ByteKey().set(rec, HEADER, klen);
+				if (type == PUT) {
+					map.put(key, rec, HEADER + klen, vlen);
+				} else if (type == PUT_TTL && vlen >= 8) {
+					long deadline = ByteBuffer.wrap(rec)
+						.getLong(HEADER + klen);
+					if (map instanceof ExpiringStore)
+						((ExpiringStore) map).put(key, rec,
+							HEADER + klen + 8, vlen - 8,
+							deadline);
+					else
+						map.put(key, rec, HEADER + klen + 8,
+							vlen - 8);
+				} else if (type == REMOVE) {
+					map.remove(key);
+				} else break;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** Open a new log file and start the background thread. */
+	public void start() throws IOException {
+		ch = open(++gen);
+		if (durability != WRITE) {
+			myThread = new Thread(this, "log-writer");
+			myThread.setDaemon(true);
+			myThread.start();
+		}
+	}
+
+	private FileChannel open(int g) throws IOException {
+		FileChannel f = FileChannel.open(
+			new File(dir, "log." + g).toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		syncDir();
+		return f;
+	}
+
+	/** Force the entries of the directory (files created, renamed or
+	 *  deleted) to disk.
+	 */
+	private void syncDir() throws IOException {
+		try (FileChannel d = FileChannel.open(dir.toPath(),
+						StandardOpenOption.READ)) {
+			d.force(true);
+		}
+	}
+
+	/** Append a record to the log.
+	 *  The caller must make sure that records for the same key are
+	 *  appended in the order the changes are made to the map.
+	 *  @param type is PUT, PUT_TTL or REMOVE
+	 *  @param key is the key that was changed
+	 *  @param value holds the new value in value[off..off+len)
+	 *  (ignored for REMOVE)
+	 *  @param deadline is the time the pair expires (for PUT_TTL)
+	 */
+	public void append(byte type, ByteKey key, byte[] value, int off,
+			   int len, long deadline) throws IOException {
+		if (durability == WRITE) {
+			synchronized (ioLock) {
+				synchronized (this) {
+					encode(type, key, value, off, len,
+					       deadline);
+				}
+				flush();
+			}
+		} else {
+			synchronized (this) {
+				encode(type, key, value, off, len, deadline);
+				notifyAll(); // wake up the background thread
+			}
+		}
+		mine.get()[0] = appended;
+	}
+
+	/** Append a PUT or REMOVE record, i.e. one without a deadline. */
+	public void append(byte type, ByteKey key, byte[] value, int off,
+			   int len) throws IOException {
+		append(type, key, value, off, len, 0);
+	}
+
+	/** Add a record to buf; the caller holds the lock on this. */
+	private void encode(byte type, ByteKey key, byte[] value, int off,
+			    int len, long deadline) {
+		int klen = key.length();
+		int vlen = (type == PUT ? len : type == PUT_TTL ? 8 + len : 0);
+		int size = HEADER + klen + vlen + 4;
+		if (bufLen + size > buf.length) {
+			buf = Arrays.copyOf(buf,
+					Math.max(2 * buf.length, bufLen + size));
+		}
+		int start = bufLen;
+		ByteBuffer bb = ByteBuffer.wrap(buf, bufLen, size);
+		bb.put(type).putInt(klen).putInt(vlen);
+		key.copyTo(buf, start + HEADER);
+		int vstart = start + HEADER + klen;
+		if (type == PUT_TTL) {
+			bb.putLong(vstart, deadline);
+			vstart += 8;
+		}
+		if (type != REMOVE)
+			System.arraycopy(value, off, buf, vstart, len);
+		crc.reset(); crc.update(buf, start, HEADER + klen + vlen);
+		bb.position(start + HEADER + klen + vlen);
+		bb.putInt((int) crc.getValue());
+		bufLen += size; appended += size;
+	}
+
+	/** Wait until the records appended by the calling thread are as
+	 *  durable as the durability level promises.
+	 */
+	public void commit() throws InterruptedException {
+		if (durability != BATCH) return;
+		long end = mine.get()[0];
+		synchronized (this) {
+			while (durable < end) wait();
+		}
+	}
+
+	/** Write the pending records to the file, and force them to disk
+	 *  unless durability is NONE. The caller holds ioLock.
+	 */
+	private void flush() throws IOException {
+		byte[] b; int n; long end;
+		synchronized (this) {
+			b = buf; n = bufLen; end = appended;
+			buf = spare; spare = b; bufLen = 0;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(b, 0, n);
+		while (bb.hasRemaining()) ch.write(bb);
+		if (durability != NONE) ch.force(false);
+		synchronized (this) {
+			durable = end;
+			notifyAll(); // wake up the threads waiting in commit()
+		}
+	}
+
+	/** Background thread writes the records as they are appended. */
+	public void run() {
+		while (true) {
+			try {
+				synchronized (this) {
+					while (bufLen == 0) wait();
+				}
+				synchronized (ioLock) { flush(); }
+			} catch(Exception e) {
+				System.err.println("MapLog:run: " + e);
+				System.exit(1);
+			}
+		}
+	}
+
+	/** Take a snapshot of map and delete the files it makes useless.
+	 *  The map may change while the snapshot is being taken.
+	 *  @param map is the map to save
+	 *  @return the number of pairs in the snapshot
+	 */
+	public long checkpoint(MapStore map) throws IOException {
+		// 1. Switch to a new log file; the snapshot will include
+		// every change logged in the files before it
+		int snapGen;
+		synchronized (ioLock) {
+			flush();
+			FileChannel old = ch;
+			snapGen = gen + 1;
+			ch = open(snapGen);
+			synchronized (this) { gen = snapGen; }
+			old.close();
+		}
+
+		// 2. Write the snapshot to a temporary file, then rename it
+		File tmp = new File(dir, "snap." + snapGen + ".tmp");
+		long[] count = new long[1];
+		try (FileOutputStream fos = new FileOutputStream(tmp);
+		     DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(fos, 1 << 16))) {
+			out.writeInt(SNAP_MAGIC);
+			map.forEach((key, value, off, len) -> {
+				out.writeInt(key.length());
+				out.writeInt(len);
+				key.writeTo(out);
+				out.write(value, off, len);
+				count[0]++;
+			});
+			out.writeInt(-1); // end marker
+			// deadlines of the pairs that expire
+			if (map instanceof ExpiringStore) {
+				((ExpiringStore) map).forEachDeadline((key, d) -> {
+					out.writeInt(key.length());
+					key.writeTo(out);
+					out.writeLong(d);
+				});
+			}
+			out.writeInt(-1); // end marker
+			out.flush();
+			fos.getFD().sync();
+		}
+		if (!tmp.renameTo(new File(dir, "snap." + snapGen)))
+			throw new IOException("cannot rename " + tmp);
+		// the older files must not go before the snapshot is on disk
+		syncDir();
+
+		// 3. Delete the older snapshots and log files
+		for (int g : generations("snap"))
+			if (g < snapGen) new File(dir, "snap." + g).delete();
+		for (int g : generations("log"))
+			if (g < snapGen) new File(dir, "log." + g).delete();
+		return count[0];
+	}
+
+	/** Load the pairs of a snapshot file into map. */
+	private void readSnapshot(File f, MapStore map) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(f), 1 << 16))) {
+			if (in.readInt() != SNAP_MAGIC)
+				throw new IOException("bad snapshot " + f);
+			int klen;
+			while ((klen = in.readInt()) >= 0) {
+				byte[] k = new byte[klen];
+				byte[] v = new byte[in.readInt()];
+				in.readFully(k); in.readFully(v);
+				map.put(new ByteKey().set(k, 0, klen), v, 0, v.length);
+			}
+			// deadlines (absent in snapshots from older versions)
+			try {
+				klen = in.readInt();
+			} catch(EOFException e) {
+				klen = -1;
+			}
+			for (; klen >= 0; klen = in.readInt()) {
+				byte[] k = new byte[klen];
+				in.readFully(k);
+				long d = in.readLong();
+				if (map instanceof ExpiringStore)
+					((ExpiringStore) map).setDeadline(
+						new ByteKey().set(k, 0, klen), d);
+			}
+		}
+	}
+}
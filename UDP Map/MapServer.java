@@ -2,7 +2,114 @@
  * Name: Chengyue Gong
  * Date created: September 1
  * Date last modified: September 2
- * Usage: MapServer (port)
+ * Usage: MapServer [port] [threads=N] [report=secs] [dedup=secs]
+ *		[dedupsize=N] [dedupmem=bytes] [log=dir] [durability=none|batch|write]
+ *		[snapshot=secs] [store=heap|offheap] [io=socket|nio]
+ *		[maxmemory=bytes] [eviction=lru|lfu] [index=hash|sorted]
+ *		[backups=host:port,...] [maxlag=N] [role=primary|backup]
+ *		[queue=N] [target=ms] [interval=ms] [overload=busy|drop]
+ *		[fragmem=bytes] [fragtimeout=ms] [dump=file]
+ *		[dumpformat=compact|mapped] [watches=N] [lease=ms]
+ *
+ * port		is the UDP port to listen on (default 30123)
+ * threads	is the number of worker threads; each one receives,
+ *		processes and replies to requests on its own (default 1)
+ * report	if present, the server prints its throughput (requests
+ *		per second) every secs seconds, so the scaling with the
+ *		number of worker threads can be observed
+ * dedup	if present, the reply to every tagged request (see below)
+ *		is kept for secs seconds, and a retransmission of the
+ *		request gets the same reply without being executed again
+ * dedupsize	is the maximum number of replies kept (default 100000)
+ * dedupmem	is the memory kept for the replies (default 64m); when it
+ *		is full, the oldest replies are dropped
+ * log		if present, every put and remove is recorded in a log in
+ *		directory dir, and the pairs are restored from it when the
+ *		server starts (see MapLog)
+ * durability	is how durable a change is when the server replies to it:
+ *		none (logged, but not forced to disk), batch (forced to
+ *		disk, sharing an fsync with concurrent changes; default)
+ *		or write (forced to disk on its own)
+ * snapshot	is the time between snapshots of the pairs, which allow
+ *		the older log files to be deleted (default 60)
+ * store	selects the storage engine: heap keeps the pairs in a
+ *		ConcurrentHashMap (default); offheap keeps them as raw
+ *		bytes outside the Java heap (see OffHeapStore), which
+ *		takes much less memory and GC time with many keys
+ * io		selects how packets are received and sent: socket uses a
+ *		blocking DatagramSocket, one packet at a time (default);
+ *		nio uses a non-blocking DatagramChannel, and each worker
+ *		receives all the packets waiting in the socket buffer (up
+ *		to 32) in one burst, processes them, then sends the replies
+ *		in one burst, which saves wakeups under heavy load
+ * maxmemory	if present, the total size of the keys and values is kept
+ *		under the given number of bytes (a suffix k, m or g may be
+ *		used) by evicting pairs, so the map works as a cache (see
+ *		BoundedStore); evictions are not logged, so evicted pairs
+ *		come back, and are evicted again, when the log is replayed
+ * eviction	is the policy choosing the pairs to evict: lru evicts the
+ *		least recently used (default); lfu evicts the least
+ *		frequently used, and does not let a new pair displace a
+ *		more popular one; the throughput reports then include the
+ *		hit ratio of gets, the evictions and the memory used
+ * index	selects how the keys are indexed: hash only (default), or
+ *		also in order, in a skip list (see SortedStore), which
+ *		makes puts of new keys and removes a little slower but
+ *		allows scans (see below)
+ * backups	if present, every put and remove is streamed to the backup
+ *		servers at the given addresses (see Replicator), which
+ *		must have been started with role=backup, and with the same
+ *		pairs as this server (e.g. none)
+ * maxlag	is the number of changes a live backup may lag behind; when
+ *		a backup lags more, puts and removes wait (default 10000)
+ * role		is primary (default) or backup; a backup applies the
+ *		changes streamed by its primary and serves gets and scans,
+ *		but rejects puts and removes until it receives "promote",
+ *		after which it takes over as a primary (without backups)
+ * queue	if present, a receiving thread takes the packets off the
+ *		socket and puts them in a queue of N requests, which the
+ *		workers serve, and the server protects itself from
+ *		overload (see RequestQueue): a request that finds the
+ *		queue full is rejected, and when requests have waited more
+ *		than target ms (default 5) in the queue for interval ms
+ *		(default 100), some are shed, starting with batches and
+ *		scans, until the waiting time is back under target (the
+ *		changes from a primary, and promote, stats and dump are
+ *		never rejected nor shed); the throughput reports then
+ *		include the queue depth, the longest wait and the
+ *		requests rejected and shed (the queue uses a single
+ *		socket, and io=socket)
+ * overload	is what happens to a request that is rejected or shed:
+ *		busy replies "busy" at once (default), so the client
+ *		knows to back off; drop ignores it, as a full socket
+ *		buffer would
+ * fragmem	is the memory kept for requests being reassembled from
+ *		fragments (default 64m), split among up to 4 stripes per
+ *		worker thread, chosen by the address of the sender; when
+ *		a stripe is full, its oldest partial requests are
+ *		discarded
+ * fragtimeout	is the time after which a request missing some of its
+ *		fragments is discarded (default 2000)
+ * dump		if present, the request "dump" makes the server write a
+ *		snapshot of the pairs, as they are when it starts, to file
+ *		in the background while it keeps serving requests (see
+ *		SnapshotStore); at start, if there is no log, the pairs of
+ *		the file are loaded if it exists, with their deadlines
+ *		(those that have expired since are left out)
+ * dumpformat	is the format of the dump file: compact (default) is the
+ *		smallest, but is loaded by reading every pair; mapped is
+ *		larger, but holds a hash table of the keys, and is mapped
+ *		into memory at start and served in place (see MappedStore),
+ *		so that the server answers at once whatever the number of
+ *		pairs, the changes being kept in the store (not counted by
+ *		maxmemory); with index=sorted, the keys are still read at
+ *		start to build the index
+ * watches	is the maximum number of keys watched by clients (see
+ *		watch below and Watches), 0 to refuse watches (default
+ *		100000); when it is reached, the oldest watches end
+ * lease	is the time a key is watched for, in ms (default 10000), as
+ *		the lease of MapClient's near mode; a client must not
+ *		cache a value for longer
  *
  * Description: The server stores a set of (key, value) pair.
  * Keys and values are strings, and no same key.
@@ -10,107 +117,1301 @@
  * and replies with the message (a UDP packet) indicating 
  * whether the request has been successfully completed or not.
  *
+ * The pairs are kept in a concurrent map, so that several worker
+ * threads can serve requests at the same time. When more than one
+ * worker is used and the platform supports SO_REUSEPORT, every worker
+ * binds its own socket to the port and the kernel spreads incoming
+ * packets over them; otherwise the workers share a single socket.
+ *
  * The types of request include get, put, and remove.
  * get:k	- returns the value of the key=k if key=k exists
  * put:k:v 	- adds the pair (k,v) (if key=k exists, replaces the value)
  * remove:k - deletes the pair (k,v) if key=k exists
+ * put:k:v:ttl=s - as put:k:v, but the pair expires after s seconds;
+ *		a pair put without ttl never expires
+ * scan:p:n	- returns up to n pairs whose key starts with p (which may
+ *		be empty), in key order, one "k:v" per line (index=sorted)
+ *
+ * A scan reply holds as many pairs as fit in a page of about 8 KB, so
+ * it is sent as a single (if fragmented) packet. Its last line is "end"
+ * if there are no more pairs with the prefix, or "next:k" otherwise,
+ * where k is the last key returned. The next page is then requested by
+ * adding k as a continuation token:
+ * scan:p:n:k	- as scan:p:n, but starts after key k
+ * Pairs put or removed during a scan may or may not be returned, but
+ * every pair present during the whole scan is returned exactly once.
+ *
+ * promote	- makes a backup a primary, which accepts puts and removes
+ * watch:k	- as get:k, but also registers the client as watching k (see
+ *		Watches) for a lease: when k is put or removed, expires or
+ *		is evicted during the lease, the server sends the client a
+ *		packet "inval:k", so that the client can cache the value
+ *		until then, or until the lease is over, when no packet is
+ *		sent (see NearCache); watches cannot be batched
+ * dump		- starts writing a snapshot to the dump file (see option
+ *		dump) and replies "Ok" at once, or an error if there is
+ *		no dump file or a snapshot is being written already
+ * stats	- returns the statistics of the server, one "name:value" per
+ *		line: the requests served, in total and by kind (get, put,
+ *		remove, scan and other, i.e. malformed), the gets that
+ *		found their key (get.hit) or not (get.miss), the bytes
+ *		received and sent, the number of keys, the watches and
+ *		the invalidations sent, the memory used
+ *		(heap, off-heap, keys and values) and percentiles of the
+ *		service time of each kind of request (e.g. get.p99.us).
+ *		The counters are kept by each worker thread for itself
+ *		(see Stats), and only added up for this request.
+ *
+ * A server that is overloaded (see option queue) may reply "busy" to
+ * any request but promote, stats and dump, which has then not been
+ * executed.
+ *
+ * A request or reply that does not fit in a packet (such as a put or
+ * get of a large value) is sent in fragments, up to 1 MB (see
+ * Fragments); the server handles a request once it has all of its
+ * fragments.
+ *
+ * Several requests may be packed into one packet to save per-packet
+ * overhead. Such a batch starts with the line "batch", followed by one
+ * request per line; the reply holds the responses to the requests, one
+ * per line, in the same order. Scans cannot be batched. The reply is at
+ * most about 1 MB long: when the response to a request might not fit,
+ * neither it nor the requests after it are executed, and the last line
+ * of the reply is "Error:reply too long".
+ * batch\nget:k1\nput:k2:v2	- replies with "ok:v1\nOk" (for example)
+ *
+ * A packet may start with a tag, made of decimal digits and a '#'.
+ * The tag is copied at the start of the reply, so that a client with
+ * several requests outstanding can match replies with requests.
+ * 17#get:k	- replies with "17#ok:v" (for example)
+ * When duplicate detection is on (dedup option), a tag identifies a
+ * request among those recently sent from the same address, so a client
+ * that retries a request must reuse its tag, and should not reuse a tag
+ * for a different request within the dedup time.
  */
 
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MapServer {
 	// Store a set of (key, value) pairs
-	private static HashMap<String, String> hmap = new HashMap<>();
+	private static ExpiringStore store = new ExpiringStore(new HeapStore());
+	// Largest request: a packet, or a packet of changes from a primary,
+	// which may hold a single change of MAX_PACKET bytes and its header
+	static final int MAX_REQUEST = Fragments.MAX_PACKET + 64;
+	// Largest reply: room for the responses of a batch, the last of
+	// which may hold a value of the largest size (see Fragments)
+	static final int MAX_REPLY = 2 * Fragments.MAX_MESSAGE;
+	// Largest response to a batch: a message, less room for a tag
+	static final int MAX_BATCH = Fragments.MAX_MESSAGE - 64;
+	// Storage engines whose memory is reported by stats, or null
+	private static BoundedStore bounded = null;
+	private static OffHeapStore offHeap = null;
+	// Requests being reassembled from fragments, in stripes chosen by
+	// the address of the sender, so that the workers do not all wait
+	// for the same lock
+	private static Fragments[] fragments = null;
+	// Replies to recent tagged requests, or null if not enabled
+	private static ReplyCache replies = null;
+	// Ordered index of the keys, or null if not enabled
+	private static SortedStore index = null;
+	// Snapshots of the pairs, and the file they are written to, or null
+	// if not enabled; dumping is true while one is being written
+	private static SnapshotStore dumper = null;
+	private static File dumpFile = null;
+	private static boolean mappedDump = false;
+	private static AtomicBoolean dumping = new AtomicBoolean();
+	// Clients watching keys, or null if not enabled
+	private static Watches watches = null;
+	// Stream of the changes to the backups, or null if not enabled
+	private static Replicator repl = null;
+	// True on a backup that has not been promoted
+	private static volatile boolean readOnly = false;
+	// Last stream and change applied by a backup; guarded by replLock
+	private static final Object replLock = new Object();
+	private static long replEpoch = 0, replApplied = 0;
+	private static LongAdder applied = new LongAdder();
+	// Log of the changes, or null if not enabled
+	private static MapLog log = null;
+	// Locks that order the changes to a key with their log records
+	private static final Object[] keyLocks = new Object[64];
+	static {
+		for (int i = 0; i < keyLocks.length; i++)
+			keyLocks[i] = new Object();
+	}
+
+	// Requests and responses, as US-ASCII bytes
+	private static final byte[] GET = ascii("get:");
+	private static final byte[] PUT = ascii("put:");
+	private static final byte[] REMOVE = ascii("remove:");
+	private static final byte[] TTL = ascii("ttl=");
+	private static final byte[] AT = ascii("at=");
+	private static final byte[] SCAN = ascii("scan:");
+	private static final byte[] REPL = ascii("repl:");
+	private static final byte[] PROMOTE = ascii("promote");
+	private static final byte[] STATS = ascii("stats");
+	private static final byte[] DUMP = ascii("dump");
+	private static final byte[] WATCH = ascii("watch:");
+	private static final byte[] ACK = ascii("ack:");
+	private static final byte[] BATCH = ascii("batch\n");
+	private static final byte[] OK = ascii("Ok");
+	private static final byte[] OK_VALUE = ascii("ok:");
+	private static final byte[] UPDATED = ascii("updated:");
+	private static final byte[] NO_MATCH = ascii("no match");
+	private static final byte[] ERROR = ascii("Error:unrecognizable input:");
+	private static final byte[] TOO_LONG = ascii("Error:reply too long");
+	private static final byte[] NEXT = ascii("next:");
+	private static final byte[] END = ascii("end");
+	private static final byte[] NO_INDEX = ascii("Error:no sorted index");
+	private static final byte[] READ_ONLY = ascii("Error:read only");
+	private static final byte[] NO_DUMP = ascii("Error:no dump file");
+	private static final byte[] DUMPING = ascii("Error:dump in progress");
+	private static final byte[] NO_WATCH = ascii("Error:watches disabled");
+	private static final byte[] BUSY = ascii("busy");
+	// Size after which a scan reply stops adding pairs
+	private static final int SCAN_PAGE = 8192;
+
+	static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	// Check if in[off..off+len) starts with prefix
+	static boolean startsWith(byte[] in, int off, int len, byte[] prefix) {
+		if (len < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++)
+			if (in[off + i] != prefix[i]) return false;
+		return true;
+	}
+
+	// Find the first c in in[from..to), or return to if there is none
+	static int indexOf(byte[] in, int from, int to, byte c) {
+		while (from < to && in[from] != c) from++;
+		return from;
+	}
+
+	// Copy src[off..off+len) into out at pos, return the next position
+	static int append(byte[] out, int pos, byte[] src, int off, int len) {
+		System.arraycopy(src, off, out, pos, len);
+		return pos + len;
+	}
+
+	static int append(byte[] out, int pos, byte[] src) {
+		return append(out, pos, src, 0, src.length);
+	}
 
  	// get function (get:k)
  	// Found k 		- ok:value
  	// Not Found k	- no match
- 	private static String get(String key) {
- 		if (hmap.containsKey(key)) {
- 			return "ok:" + hmap.get(key);
+ 	private static int get(ByteKey key, byte[] out, int pos) {
+ 		int end = store.get(key, out, pos + OK_VALUE.length);
+ 		if (end >= 0) {
+ 			append(out, pos, OK_VALUE);
+ 			return end;
  		} else {
- 			return "no match";
+ 			return append(out, pos, NO_MATCH);
  		}
  	}
 
- 	// put function (put:k:v)
+ 	// Encode a change as the request that makes it, for the backups:
+ 	// prefix (put: or remove:) and key, then the value, if not null,
+ 	// and the deadline, if not 0, as at=ms (see applyChange), so that
+ 	// the pair expires at the same time on the backups
+ 	private static byte[] change(byte[] prefix, ByteKey key, byte[] value,
+ 				     int off, int len, long deadline) {
+ 		byte[] t = deadline > 0 ? ascii(":at=" + deadline) : new byte[0];
+ 		byte[] c = new byte[prefix.length + key.length()
+ 			+ (value != null ? 1 + len : 0) + t.length];
+ 		int pos = append(c, 0, prefix);
+ 		pos = key.copyTo(c, pos);
+ 		if (value != null) {
+ 			c[pos++] = ':';
+ 			pos = append(c, pos, value, off, len);
+ 		}
+ 		append(c, pos, t);
+ 		return c;
+ 	}
+
+ 	// Put a pair in the store, with a deadline unless it is 0
+ 	private static boolean putPair(ByteKey key, byte[] value, int off,
+ 				     int len, long deadline) {
+ 		if (deadline > 0)
+ 			return store.put(key, value, off, len, deadline);
+ 		return store.put(key, value, off, len);
+ 	}
+
+ 	// put function (put:k:v), with the value in value[off..off+len)
+ 	// and the time the pair expires, in ms (0 if it does not expire)
  	// Found k 		- updated:key
  	// Not Found k	- Ok
-	private static String put(String key, String value) {
- 		if (hmap.containsKey(key)) {
- 			hmap.replace(key, value);
- 			return "updated:" + key;
+	private static int put(ByteKey key, byte[] value, int off, int len,
+ 			       long deadline, byte[] out, int pos)
+ 							throws IOException {
+ 		boolean found;
+ 		if (log == null && repl == null) {
+ 			found = putPair(key, value, off, len, deadline);
  		} else {
- 			hmap.put(key, value);
- 			return "Ok";
+ 			synchronized (keyLocks[key.hashCode() & 63]) {
+ 				found = putPair(key, value, off, len, deadline);
+ 				if (log != null)
+ 					log.append(deadline > 0 ? MapLog.PUT_TTL
+ 						: MapLog.PUT, key, value, off,
+ 						len, deadline);
+ 				if (repl != null)
+ 					repl.append(change(PUT, key, value, off,
+ 							   len, deadline));
+ 			}
+ 			if (repl != null) repl.throttle();
+ 		}
+ 		if (watches != null) watches.changed(key);
+ 		if (found) {
+ 			pos = append(out, pos, UPDATED);
+ 			return key.copyTo(out, pos);
+ 		} else {
+ 			return append(out, pos, OK);
  		}
  	}
 
  	// remove function (remove:k)
  	// Found k 		- Ok
  	// Not Found k	- no match
- 	private static String remove(String key) {
- 		if (hmap.containsKey(key)) {
- 			hmap.remove(key);
- 			return "Ok";
+ 	private static int remove(ByteKey key, byte[] out, int pos)
+ 							throws IOException {
+ 		boolean found;
+ 		if (log == null && repl == null) {
+ 			found = store.remove(key);
+ 		} else {
+ 			synchronized (keyLocks[key.hashCode() & 63]) {
+ 				found = store.remove(key);
+ 				if (found && log != null)
+ 					log.append(MapLog.REMOVE, key, null, 0, 0);
+ 				if (found && repl != null)
+ 					repl.append(change(REMOVE, key, null, 0,
+ 							   0, 0));
+ 			}
+ 			if (repl != null) repl.throttle();
+ 		}
+ 		if (found && watches != null) watches.changed(key);
+ 		if (found) {
+ 			return append(out, pos, OK);
  		} else {
- 			return "no match";
+ 			return append(out, pos, NO_MATCH);
  		}
  	}
 
-	public static void main(String args[]) throws Exception {
+ 	// Parse a time to live field (ttl=s) in in[from..to); return the
+ 	// number of seconds, or -1 if the field is not well formed
+ 	private static long ttl(byte[] in, int from, int to) {
+ 		if (!startsWith(in, from, to - from, TTL)) return -1;
+ 		from += TTL.length;
+ 		if (from == to || to - from > 9) return -1;
+ 		long ttl = 0;
+ 		for (int i = from; i < to; i++) {
+ 			if (in[i] < '0' || in[i] > '9') return -1;
+ 			ttl = 10 * ttl + (in[i] - '0');
+ 		}
+ 		return ttl;
+ 	}
 
-		// 1. Create a DatagramSocket and bind it to the specified port
-		int port = 30123; // the default port number
-		if (args.length > 0) port = Integer.parseInt(args[0]);
+ 	// scan function (scan:p:n or scan:p:n:k), with the request in
+ 	// in[off..off+len)
+ 	// Pairs found	- k1:v1\n...\nkn:vn\nend (or next:kn if there may
+ 	//		  be more pairs)
+ 	// None found	- end
+ 	static int scan(byte[] in, int off, int len, byte[] out, int pos,
+ 			ByteKey probe) {
+ 		int end = off + len;
+ 		while (end > off && in[end - 1] == ':') end--;
+ 		int colon1 = off + SCAN.length - 1;
+ 		int colon2 = indexOf(in, colon1 + 1, end, (byte) ':');
+ 		int colon3 = indexOf(in, colon2 + 1, end, (byte) ':');
+ 		int limit = 0;
+ 		for (int i = colon2 + 1; i < colon3; i++) {
+ 			if (in[i] < '0' || in[i] > '9' || limit > 99999999) {
+ 				limit = -1;
+ 				break;
+ 			}
+ 			limit = 10 * limit + (in[i] - '0');
+ 		}
+ 		if (colon2 >= end || limit <= 0 || (colon3 < end
+ 		    && indexOf(in, colon3 + 1, end, (byte) ':') < end)) {
+ 			pos = append(out, pos, ERROR);
+ 			return append(out, pos, in, off, len);
+ 		}
+ 		if (index == null) return append(out, pos, NO_INDEX);
+
+ 		// start at the prefix, or after the token if it is larger
+ 		int prefix = colon1 + 1, prefixLen = colon2 - colon1 - 1;
+ 		probe.set(in, prefix, prefixLen);
+ 		boolean inclusive = true;
+ 		if (colon3 < end) {
+ 			ByteKey token = new ByteKey().set(in, colon3 + 1,
+ 							  end - colon3 - 1);
+ 			if (token.compareTo(probe) >= 0) {
+ 				probe = token; inclusive = false;
+ 			}
+ 		}
+ 		Iterator<ByteKey> keys = index.keysFrom(probe, inclusive);
+ 		int first = pos, n = 0;
+ 		ByteKey last = null;
+ 		boolean more = false;
+ 		while (keys.hasNext()) {
+ 			ByteKey key = keys.next();
+ 			if (!key.startsWith(in, prefix, prefixLen)) break;
+ 			if (n == limit || pos - first > SCAN_PAGE) {
+ 				more = true;
+ 				break;
+ 			}
+ 			int p = key.copyTo(out, pos);
+ 			out[p++] = ':';
+ 			p = store.get(key, out, p);
+ 			if (p < 0) continue; // removed, or expired
+ 			out[p++] = '\n';
+ 			pos = p; n++; last = key;
+ 		}
+ 		if (!more) return append(out, pos, END);
+ 		pos = append(out, pos, NEXT);
+ 		return last.copyTo(out, pos);
+ 	}
 
-		// 2. Open UDP socket
-		DatagramSocket sock = new DatagramSocket(port);
+ 	// Process the request in[off..off+len) and write the response
+ 	// into out at pos; return the position following the response.
+ 	// The request is parsed in place; probe is a reusable key that
+ 	// points into in, so a get that finds its key allocates nothing
+ 	// (and neither does any request, with the off-heap store).
+ 	static int process(byte[] in, int off, int len, byte[] out, int pos,
+ 			   ByteKey probe) throws IOException {
+		// ignore trailing colons, as String.split(":") used to
+		int end = off + len;
+		while (end > off && in[end - 1] == ':') end--;
+		int colon1 = indexOf(in, off, end, (byte) ':');
+		int colon2 = indexOf(in, colon1 + 1, end, (byte) ':');
+		int colon3 = indexOf(in, colon2 + 1, end, (byte) ':');
+		// Processing "get" request (get:k)
+		if (startsWith(in, off, len, GET) && colon1 < end
+		    && colon2 >= end) { 
+			probe.set(in, colon1 + 1, end - colon1 - 1);
+			return get(probe, out, pos);
+		} 
+		// Processing "put" request (put:k:v)
+		else if (startsWith(in, off, len, PUT) && colon2 < end
+			 && colon3 >= end) { 
+			probe.set(in, colon1 + 1, colon2 - colon1 - 1);
+			return put(probe, in, colon2 + 1, end - colon2 - 1, 0,
+				   out, pos);
+		} 
+		// Processing "put" request with a time to live (put:k:v:ttl=s)
+		else if (startsWith(in, off, len, PUT) && colon3 < end
+			 && ttl(in, colon3 + 1, end) > 0) {
+			probe.set(in, colon1 + 1, colon2 - colon1 - 1);
+			return put(probe, in, colon2 + 1, colon3 - colon2 - 1,
+				   System.currentTimeMillis()
+				   + 1000 * ttl(in, colon3 + 1, end), out, pos);
+		} 
+		// Processing "remove" request (remove:k)
+		else if (startsWith(in, off, len, REMOVE) && colon1 < end
+			 && colon2 >= end) { 
+			probe.set(in, colon1 + 1, end - colon1 - 1);
+			return remove(probe, out, pos);
+		} 
+		// Improperly formatted commands
+		// Error:unrecognizable input:the input’s packet payload
+		else {
+			pos = append(out, pos, ERROR);
+			return append(out, pos, in, off, len);
+		}
+ 	}
+
+ 	// Process a request from a client, as process() does, except that a
+ 	// backup rejects the requests that would change the pairs
+ 	static int request(byte[] in, int off, int len, byte[] out, int pos,
+ 			   ByteKey probe) throws IOException {
+ 		if (readOnly && (startsWith(in, off, len, PUT)
+ 				 || startsWith(in, off, len, REMOVE)))
+ 			return append(out, pos, READ_ONLY);
+ 		return process(in, off, len, out, pos, probe);
+ 	}
+
+ 	// Parse the decimal number in in[from..to); return -1 if it is not
+ 	// well formed
+ 	private static long number(byte[] in, int from, int to) {
+ 		if (from == to || to - from > 18) return -1;
+ 		long n = 0;
+ 		for (int i = from; i < to; i++) {
+ 			if (in[i] < '0' || in[i] > '9') return -1;
+ 			n = 10 * n + (in[i] - '0');
+ 		}
+ 		return n;
+ 	}
+
+ 	// Apply a change from the primary in in[off..off+len), i.e. a put
+ 	// or remove request, where a put may end with the deadline of the
+ 	// pair (put:k:v:at=ms) instead of a time to live, and write the
+ 	// response into out at pos; return the position following it
+ 	private static int applyChange(byte[] in, int off, int len,
+ 			byte[] out, int pos, ByteKey probe) throws IOException {
+ 		int end = off + len;
+ 		int colon1 = indexOf(in, off, end, (byte) ':');
+ 		int colon2 = indexOf(in, colon1 + 1, end, (byte) ':');
+ 		int colon3 = indexOf(in, colon2 + 1, end, (byte) ':');
+ 		if (startsWith(in, off, len, PUT) && colon3 < end
+ 		    && startsWith(in, colon3 + 1, end - colon3 - 1, AT)) {
+ 			long deadline = number(in, colon3 + 1 + AT.length, end);
+ 			if (deadline > 0) {
+ 				probe.set(in, colon1 + 1, colon2 - colon1 - 1);
+ 				return put(probe, in, colon2 + 1,
+ 					   colon3 - colon2 - 1, deadline, out,
+ 					   pos);
+ 			}
+ 		}
+ 		return process(in, off, len, out, pos, probe);
+ 	}
+
+ 	// Apply a packet of changes from the primary (repl:epoch:seq and
+ 	// the changes numbered from seq, each one as its length, a newline,
+ 	// then the change) in in[off..off+len), and write the ack, the
+ 	// number of the last change applied, into out at pos; return the
+ 	// position following the ack, or -1 if the packet comes from an
+ 	// earlier primary and should not be acked
+ 	static int applyChanges(byte[] in, int off, int len, byte[] out,
+ 				int pos, ByteKey probe) throws IOException {
+ 		int end = off + len;
+ 		int colon = indexOf(in, off + REPL.length, end, (byte) ':');
+ 		int nl = indexOf(in, colon + 1, end, (byte) '\n');
+ 		long epoch = number(in, off + REPL.length, colon);
+ 		long seq = number(in, colon + 1, nl);
+ 		if (colon >= end || epoch < 0 || seq < 1) {
+ 			pos = append(out, pos, ERROR);
+ 			return append(out, pos, in, off, len);
+ 		}
+ 		synchronized (replLock) {
+ 			if (epoch < replEpoch) return -1;
+ 			if (epoch > replEpoch) {
+ 				replEpoch = epoch; replApplied = 0;
+ 			}
+ 			// skip the changes already applied, stop at a gap
+ 			// (or at a change that is cut short)
+ 			int start = nl + 1;
+ 			for (long s = seq; start < end && s <= replApplied + 1;
+ 			     s++) {
+ 				int e = indexOf(in, start, end, (byte) '\n');
+ 				long n = number(in, start, e);
+ 				if (e == end || n < 0 || n > end - e - 1) break;
+ 				if (s == replApplied + 1) {
+ 					applyChange(in, e + 1, (int) n, out, pos,
+ 						    probe);
+ 					replApplied++;
+ 					applied.increment();
+ 				}
+ 				start = e + 1 + (int) n;
+ 			}
+ 			pos = append(out, pos, ACK);
+ 			return append(out, pos, ascii(Long.toString(replApplied)));
+ 		}
+ 	}
+
+ 	// Serve a request from a client, as request() does, and count it
+ 	// and its service time in stats
+ 	private static int serveRequest(byte[] in, int off, int len,
+ 			byte[] out, int pos, ByteKey probe, Stats stats)
+ 							throws IOException {
+ 		int op = startsWith(in, off, len, GET) ? Stats.GET
+ 			: startsWith(in, off, len, PUT) ? Stats.PUT
+ 			: startsWith(in, off, len, REMOVE) ? Stats.REMOVE
+ 			: Stats.OTHER;
+ 		long t0 = System.nanoTime();
+ 		int end = request(in, off, len, out, pos, probe);
+ 		stats.record(op, System.nanoTime() - t0);
+ 		if (op == Stats.GET)
+ 			stats.get(startsWith(out, pos, end - pos, OK_VALUE));
+ 		return end;
+ 	}
+
+ 	// Write the statistics of the server into out at pos, one per line
+ 	// (name:value); return the position following them
+ 	private static int stats(byte[] out, int pos) {
+ 		Stats t = Stats.total();
+ 		StringBuilder sb = new StringBuilder();
+ 		long requests = 0;
+ 		for (int op = 0; op < Stats.NAMES.length; op++)
+ 			requests += t.count(op);
+ 		sb.append("requests:").append(requests);
+ 		for (int op = 0; op < Stats.NAMES.length; op++)
+ 			sb.append('\n').append(Stats.NAMES[op]).append(':')
+ 			  .append(t.count(op));
+ 		sb.append("\nget.hit:").append(t.hits())
+ 		  .append("\nget.miss:").append(t.misses())
+ 		  .append("\nbytes.in:").append(t.bytesIn())
+ 		  .append("\nbytes.out:").append(t.bytesOut())
+ 		  .append("\nkeys:").append(store.size());
+		if (watches != null)
+			sb.append("\nwatches:").append(watches.size())
+			  .append("\ninvalidations:").append(watches.sent());
+ 		Runtime rt = Runtime.getRuntime();
+ 		sb.append("\nmemory.heap:")
+ 		  .append(rt.totalMemory() - rt.freeMemory());
+ 		if (offHeap != null)
+ 			sb.append("\nmemory.offheap:").append(offHeap.memoryUsed());
+ 		if (bounded != null)
+ 			sb.append("\nmemory.pairs:").append(bounded.memory());
+ 		// service times, in us
+ 		for (int op = 0; op < Stats.NAMES.length; op++) {
+ 			Histogram h = t.time(op);
+ 			if (h.count() == 0) continue;
+ 			String name = "\n" + Stats.NAMES[op] + ".";
+ 			sb.append(name).append("p50.us:")
+ 			  .append(h.percentile(0.50) / 1000.0)
+ 			  .append(name).append("p99.us:")
+ 			  .append(h.percentile(0.99) / 1000.0)
+ 			  .append(name).append("p999.us:")
+ 			  .append(h.percentile(0.999) / 1000.0);
+ 		}
+ 		return append(out, pos, ascii(sb.toString()));
+ 	}
+
+ 	// Process a batch of requests, one per line after the "batch" line,
+ 	// and write their responses, one per line, in the same order, into
+ 	// out at pos; return the position following the response, which is
+ 	// at most MAX_BATCH bytes long. A request whose response might not
+ 	// fit is not executed, nor are those after it, and the last line of
+ 	// the response is an error instead. Only a get has a response that
+ 	// may be longer than the request and an error prefix, and as it
+ 	// changes nothing, it is executed, then dropped if it did not fit.
+ 	static int processBatch(byte[] in, int off, int len, byte[] out,
+ 				int pos, ByteKey probe, Stats stats)
+ 							throws IOException {
+ 		int limit = pos + MAX_BATCH - TOO_LONG.length;
+ 		int start = off + BATCH.length;
+ 		while (start < off + len) {
+ 			int end = indexOf(in, start, off + len, (byte) '\n');
+ 			if (start > off + BATCH.length) out[pos++] = '\n';
+ 			int before = pos;
+ 			if (pos + ERROR.length + end - start > limit
+ 			    && !startsWith(in, start, end - start, GET)) {
+ 				pos = append(out, before, TOO_LONG);
+ 				break;
+ 			}
+ 			pos = serveRequest(in, start, end - start, out, pos,
+ 					   probe, stats);
+ 			if (pos > limit) {
+ 				pos = append(out, before, TOO_LONG);
+ 				break;
+ 			}
+ 			start = end + 1;
+ 		}
+ 		return pos;
+ 	}
+
+ 	// Handle the packet payload in[0..len), i.e. an optional tag
+ 	// followed by a request or a batch of requests, sent from address
+ 	// from (only needed when duplicates are detected), and write the
+ 	// reply into out; return the length of the reply, or -1 if no reply
+ 	// should be sent. The requests are counted in stats, the Stats of
+ 	// the calling thread.
+ 	static int handle(byte[] in, int len, SocketAddress from, byte[] out,
+ 			  ByteKey probe, Stats stats) throws Exception {
+ 		int replyLen = respond(in, len, from, out, probe, stats);
+ 		stats.packet(len, replyLen);
+ 		return replyLen;
+ 	}
+
+ 	// Respond to a packet, for handle()
+ 	private static int respond(byte[] in, int len, SocketAddress from,
+ 			byte[] out, ByteKey probe, Stats stats) throws Exception {
+ 		// handle a request sent in fragments once it is complete
+ 		if (Fragments.isFragment(in, len)) {
+ 			in = fragments[(from.hashCode() & 0x7fffffff)
+				       % fragments.length].add(from, in, len);
+ 			if (in == null) return -1;
+ 			len = in.length;
+ 		}
+ 		// copy the tag, if any, into the reply
+ 		int tag = 0; long tagValue = 0;
+ 		while (tag < len && in[tag] >= '0' && in[tag] <= '9')
+ 			tagValue = 10 * tagValue + (in[tag++] - '0');
+ 		if (tag > 0 && tag < len && in[tag] == '#') tag++;
+ 		else tag = 0;
+ 		int pos = append(out, 0, in, 0, tag);
+
+ 		// answer a retransmitted request with the earlier reply
+ 		ReplyCache.Entry mine = null;
+ 		if (replies != null && tag > 0) {
+ 			mine = replies.entry(from, tagValue);
+ 			ReplyCache.Entry e = replies.begin(mine);
+ 			if (e != null) {
+ 				byte[] reply = e.reply();
+ 				if (reply == null) return -1; // still in progress
+ 				return append(out, 0, reply);
+ 			}
+ 		}
 
-		// 3. Create a Datagrampacket for receiving packets
-		byte[] buf = new byte[1000];
+ 		if (startsWith(in, tag, len - tag, BATCH)) {
+ 			pos = processBatch(in, tag, len - tag, out, pos, probe,
+ 					   stats);
+ 		} else if (startsWith(in, tag, len - tag, SCAN)) {
+ 			long t0 = System.nanoTime();
+ 			pos = scan(in, tag, len - tag, out, pos, probe);
+ 			stats.record(Stats.SCAN, System.nanoTime() - t0);
+ 		} else if (startsWith(in, tag, len - tag, REPL)) {
+ 			if (!readOnly) return -1; // not a backup (any more)
+ 			pos = applyChanges(in, tag, len - tag, out, pos, probe);
+ 			if (pos < 0) return -1;
+ 		} else if (len - tag == PROMOTE.length
+ 			   && startsWith(in, tag, len - tag, PROMOTE)) {
+ 			readOnly = false;
+ 			pos = append(out, pos, OK);
+ 		} else if (len - tag == STATS.length
+ 			   && startsWith(in, tag, len - tag, STATS)) {
+ 			pos = stats(out, pos);
+ 		} else if (len - tag == DUMP.length
+ 			   && startsWith(in, tag, len - tag, DUMP)) {
+ 			pos = append(out, pos, dump());
+ 		} else if (startsWith(in, tag, len - tag, WATCH)) {
+ 			pos = watch(in, tag, len - tag, from, out, pos, probe,
+ 				    stats);
+ 		} else {
+ 			pos = serveRequest(in, tag, len - tag, out, pos, probe,
+ 					   stats);
+ 		}
+ 		// wait until the changes are durable before replying
+ 		if (log != null) log.commit();
+
+ 		if (mine != null)
+ 			replies.complete(mine, Arrays.copyOf(out, pos));
+ 		return pos;
+ 	}
+
+ 	// Serve a watch request (watch:k) in in[off..off+len), sent from
+ 	// address from: register the watch, then reply as to get:k
+ 	private static int watch(byte[] in, int off, int len,
+ 			SocketAddress from, byte[] out, int pos, ByteKey probe,
+ 			Stats stats) {
+ 		int start = off + WATCH.length;
+ 		if (watches == null) return append(out, pos, NO_WATCH);
+ 		if (indexOf(in, start, off + len, (byte) ':') < off + len) {
+ 			pos = append(out, pos, ERROR);
+ 			return append(out, pos, in, off, len);
+ 		}
+ 		long t0 = System.nanoTime();
+ 		probe.set(in, start, off + len - start);
+ 		watches.watch(probe, from);
+ 		int end = get(probe, out, pos);
+ 		stats.record(Stats.GET, System.nanoTime() - t0);
+ 		stats.get(startsWith(out, pos, end - pos, OK_VALUE));
+ 		return end;
+ 	}
+
+ 	// Start writing a snapshot to the dump file in the background;
+ 	// return the response to the request
+ 	private static byte[] dump() {
+ 		if (dumper == null) return NO_DUMP;
+ 		if (!dumping.compareAndSet(false, true)) return DUMPING;
+ 		Thread t = new Thread(() -> {
+ 			try {
+ 				long t0 = System.nanoTime();
+ 				long n = dumper.snapshot(dumpFile, mappedDump);
+ 				System.out.printf("MapServer: dumped %d pairs to "
+ 					+ "%s in %.2f s%n", n, dumpFile,
+ 					(System.nanoTime() - t0) / 1e9);
+ 			} catch(Exception e) {
+ 				System.err.println("MapServer:dump: " + e);
+ 			} finally {
+ 				dumping.set(false);
+ 			}
+ 		}, "dump");
+ 		t.setDaemon(true);
+ 		t.start();
+ 		return OK;
+ 	}
+
+ 	// Worker loop: receive, process and reply to requests on sock
+ 	private static void serve(DatagramSocket sock) {
+		// Create a Datagrampacket for receiving packets, and
+		// buffers that are reused for every request and reply
+		byte[] buf = new byte[MAX_REQUEST];
+		byte[] out = new byte[MAX_REPLY];
+		ByteKey probe = new ByteKey();
+		Stats stats = Stats.register();
 		DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+		byte[] frag = new byte[Fragments.MAX_PACKET];
+		Fragments.Sender sender = (b, n) -> {
+			pkt.setData(b, 0, n);
+			sock.send(pkt);
+		};
 
-		// 4. Response the packet from the client
+		// Response the packet from the client
 		while (true) {
-			// Recover the length of the packet
-			pkt.setData(buf);
-			// Wait for incoming packet
-			sock.receive(pkt);
-			// Get the request from the client (the payload of the packet)
-			String payload = new String(buf, 0, pkt.getLength(), "US-ASCII");
-
-			// PROCESS the request
-			String response = new String();
-			String[] request = payload.split(":");
-			// Processing "get" request (get:k)
-			if (request[0].equals("get") && request.length == 2) { 
-				String key = request[1];
-				response = get(key);
-			} 
-			// Processing "put" request (put:k:v)
-			else if (request[0].equals("put") && request.length == 3) { 
-				String key = request[1];
-				String value = request[2];
-				response = put(key, value);
-			} 
-			// Processing "remove" request (remove:k)
-			else if (request[0].equals("remove") && request.length == 2) { 
-				String key = request[1];
-				response = remove(key);
-			} 
-			// Improperly formatted commands
-			// Error:unrecognizable input:the input’s packet payload
-			else {
-				response = "Error:unrecognizable input:" + payload;
+			try {
+				// Recover the length of the packet
+				pkt.setData(buf);
+				// Wait for incoming packet
+				sock.receive(pkt);
+				// PROCESS the request (or batch of requests)
+				int len = pkt.getLength();
+				SocketAddress from = (replies == null &&
+					!needsAddress(buf, len)) ? null
+					: pkt.getSocketAddress();
+				int replyLen = handle(buf, len, from, out, probe,
+						      stats);
+				if (replyLen < 0) continue;
+				// Reply (in fragments if it is too long)
+				Fragments.send(out, replyLen, frag, sender);
+			} catch(Exception e) {
+				System.err.println("MapServer:serve: " + e);
+				System.exit(1);
 			}
+		}
+ 	}
 
-			// Prepare the packet for response
-			pkt.setData(response.getBytes("US-ASCII"));
-			// Reply
-			sock.send(pkt);
+ 	// Return the length of the tag at the start of in[0..len), including
+ 	// the '#', or 0 if there is none
+ 	private static int tagLength(byte[] in, int len) {
+ 		int tag = 0;
+ 		while (tag < len && in[tag] >= '0' && in[tag] <= '9') tag++;
+ 		return (tag > 0 && tag < len && in[tag] == '#') ? tag + 1 : 0;
+ 	}
+
+ 	// Check if the reply to the packet in[0..len) depends on the address
+ 	// of its sender, i.e. if it is a fragment or a watch request
+ 	private static boolean needsAddress(byte[] in, int len) {
+ 		int tag = tagLength(in, len);
+ 		return Fragments.isFragment(in, len)
+ 		       || startsWith(in, tag, len - tag, WATCH);
+ 	}
+
+ 	// Return the priority of the request in in[0..len) when the server
+ 	// is overloaded (see RequestQueue): control, i.e. never rejected
+ 	// nor shed, for the changes from a primary and the requests of an
+ 	// operator; low, i.e. shed first, for batches and scans; normal
+ 	// for the others
+ 	private static int priority(byte[] in, int len) {
+ 		int tag = tagLength(in, len);
+ 		if (startsWith(in, tag, len - tag, REPL)
+ 		    || (len - tag == PROMOTE.length
+ 			&& startsWith(in, tag, len - tag, PROMOTE))
+ 		    || (len - tag == STATS.length
+ 			&& startsWith(in, tag, len - tag, STATS))
+ 		    || (len - tag == DUMP.length
+ 			&& startsWith(in, tag, len - tag, DUMP)))
+ 			return RequestQueue.CONTROL;
+ 		if (startsWith(in, tag, len - tag, BATCH)
+ 		    || startsWith(in, tag, len - tag, SCAN))
+ 			return RequestQueue.LOW;
+ 		return RequestQueue.NORMAL;
+ 	}
+
+ 	// Write the reply to a rejected request in[0..len) into out, i.e.
+ 	// its tag followed by "busy"; return the length of the reply
+ 	private static int busy(byte[] in, int len, byte[] out) {
+ 		return append(out, append(out, 0, in, 0, tagLength(in, len)),
+ 			      BUSY);
+ 	}
+
+ 	// Receiving loop for the queue mode: receive requests on sock and
+ 	// queue them, and reject those that find the queue full, except
+ 	// control requests, which are served at once
+ 	private static void receive(DatagramSocket sock, RequestQueue queue,
+ 				    boolean busyReplies) {
+ 		RequestQueue.Request r = queue.allocate();
+ 		DatagramPacket pkt = new DatagramPacket(r.buf, r.buf.length);
+ 		byte[] out = new byte[MAX_REPLY];
+ 		DatagramPacket reply = new DatagramPacket(out, out.length);
+ 		ByteKey probe = new ByteKey();
+ 		Stats stats = Stats.register();
+ 		byte[] frag = new byte[Fragments.MAX_PACKET];
+ 		Fragments.Sender sender = (b, n) -> {
+ 			reply.setData(b, 0, n);
+ 			sock.send(reply);
+ 		};
+ 		while (true) {
+ 			try {
+ 				pkt.setData(r.buf);
+ 				sock.receive(pkt);
+ 				r.len = pkt.getLength();
+ 				r.from = pkt.getSocketAddress();
+ 				int priority = priority(r.buf, r.len);
+ 				if (queue.offer(r, priority)) {
+ 					r = queue.allocate();
+ 				} else if (priority == RequestQueue.CONTROL) {
+ 					int n = handle(r.buf, r.len, r.from, out,
+ 						       probe, stats);
+ 					if (n < 0) continue;
+ 					reply.setSocketAddress(r.from);
+ 					Fragments.send(out, n, frag, sender);
+ 				} else if (busyReplies) {
+ 					reply.setData(out, 0, busy(r.buf, r.len, out));
+ 					reply.setSocketAddress(r.from);
+ 					sock.send(reply);
+ 				}
+ 			} catch(Exception e) {
+ 				System.err.println("MapServer:receive: " + e);
+ 				System.exit(1);
+ 			}
+ 		}
+ 	}
+
+ 	// Worker loop for the queue mode: take requests from the queue, and
+ 	// process and reply to them on sock, unless they are to be shed
+ 	private static void work(DatagramSocket sock, RequestQueue queue,
+ 				 boolean busyReplies) {
+ 		byte[] out = new byte[MAX_REPLY];
+ 		ByteKey probe = new ByteKey();
+ 		Stats stats = Stats.register();
+ 		DatagramPacket reply = new DatagramPacket(out, out.length);
+ 		byte[] frag = new byte[Fragments.MAX_PACKET];
+ 		Fragments.Sender sender = (b, n) -> {
+ 			reply.setData(b, 0, n);
+ 			sock.send(reply);
+ 		};
+ 		while (true) {
+ 			try {
+ 				RequestQueue.Request r = queue.take();
+ 				int replyLen;
+ 				if (!queue.shed(r, priority(r.buf, r.len)))
+ 					replyLen = handle(r.buf, r.len, r.from,
+ 							  out, probe, stats);
+ 				else if (busyReplies)
+ 					replyLen = busy(r.buf, r.len, out);
+ 				else
+ 					replyLen = -1;
+ 				if (replyLen >= 0) {
+ 					reply.setSocketAddress(r.from);
+ 					Fragments.send(out, replyLen, frag, sender);
+ 				}
+ 				queue.release(r);
+ 			} catch(Exception e) {
+ 				System.err.println("MapServer:work: " + e);
+ 				System.exit(1);
+ 			}
+ 		}
+ 	}
+
+ 	// Worker loop for the NIO mode: wait until packets arrive on the
+ 	// non-blocking channel ch, receive all of them (up to BURST), then
+ 	// process them, then send all the replies
+ 	private static void serveNio(DatagramChannel ch) {
+ 		final int BURST = 32;
+		ByteBuffer[] inBufs = new ByteBuffer[BURST];
+		ByteBuffer[] outBufs = new ByteBuffer[BURST];
+		SocketAddress[] from = new SocketAddress[BURST];
+		for (int i = 0; i < BURST; i++) {
+			inBufs[i] = ByteBuffer.allocateDirect(MAX_REQUEST);
+			outBufs[i] = ByteBuffer.allocateDirect(
+						Fragments.MAX_PACKET);
+		}
+		byte[] buf = new byte[MAX_REQUEST];
+		byte[] out = new byte[MAX_REPLY];
+		ByteKey probe = new ByteKey();
+		Stats stats = Stats.register();
+		byte[] frag = new byte[Fragments.MAX_PACKET];
+		ByteBuffer fragBuf = ByteBuffer.allocateDirect(
+						Fragments.MAX_PACKET);
+		SocketAddress[] to = new SocketAddress[1];
+
+		try (Selector readable = Selector.open();
+		     Selector writable = Selector.open()) {
+			Fragments.Sender sender = (b, n) -> {
+				fragBuf.clear();
+				fragBuf.put(b, 0, n).flip();
+				send(ch, writable, fragBuf, to[0]);
+			};
+			ch.register(readable, SelectionKey.OP_READ);
+			ch.register(writable, SelectionKey.OP_WRITE);
+			while (true) {
+				// 1. Wait for packets, then drain the socket
+				readable.select();
+				readable.selectedKeys().clear();
+				int n = 0;
+				while (n < BURST) {
+					inBufs[n].clear();
+					from[n] = ch.receive(inBufs[n]);
+					if (from[n] == null) break;
+					n++;
+				}
+				// 2. Process the requests
+				for (int i = 0; i < n; i++) {
+					ByteBuffer in = inBufs[i].flip();
+					int len = in.remaining();
+					in.get(buf, 0, len);
+					int replyLen = handle(buf, len, from[i],
+							      out, probe, stats);
+					if (replyLen > Fragments.MAX_PACKET) {
+						// send the fragments right away
+						to[0] = from[i];
+						Fragments.send(out, replyLen, frag,
+							       sender);
+						replyLen = -1;
+					}
+					outBufs[i].clear();
+					if (replyLen >= 0)
+						outBufs[i].put(out, 0, replyLen);
+					outBufs[i].flip();
+					if (replyLen < 0) from[i] = null;
+				}
+				// 3. Send the replies, waiting for room in the
+				// socket buffer if it fills up
+				for (int i = 0; i < n; i++)
+					if (from[i] != null)
+						send(ch, writable, outBufs[i], from[i]);
+			}
+		} catch(Exception e) {
+			System.err.println("MapServer:serveNio: " + e);
+			System.exit(1);
+		}
+ 	}
+
+ 	// Send the packet in buf to address to on the non-blocking channel
+ 	// ch, waiting (with selector writable) for room in the socket buffer
+ 	// if it is full
+ 	private static void send(DatagramChannel ch, Selector writable,
+ 			ByteBuffer buf, SocketAddress to) throws IOException {
+ 		while (ch.send(buf, to) == 0) {
+ 			writable.select();
+ 			writable.selectedKeys().clear();
+ 		}
+ 	}
+
+ 	// Open a socket bound to port, shared with other sockets if reuse
+ 	private static DatagramSocket openSocket(int port, boolean reuse)
+ 						throws IOException {
+ 		DatagramSocket sock = new DatagramSocket(null);
+ 		if (reuse)
+ 			sock.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+ 		sock.bind(new InetSocketAddress(port));
+ 		return sock;
+ 	}
+
+ 	// Open a non-blocking channel bound to port, shared with other
+ 	// channels if reuse
+ 	private static DatagramChannel openChannel(int port, boolean reuse)
+ 						throws IOException {
+ 		DatagramChannel ch = DatagramChannel.open();
+ 		if (reuse)
+ 			ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+ 		ch.bind(new InetSocketAddress(port));
+ 		ch.configureBlocking(false);
+ 		return ch;
+ 	}
+
+	public static void main(String args[]) throws Exception {
+
+		// 1. Process the command line arguments
+		int port = 30123; // the default port number
+		int threads = 1; // the default number of workers
+		int report = 0; // no throughput reports by default
+		double dedup = 0; // no duplicate detection by default
+		int dedupSize = 100000;
+		long dedupMemory = 64 << 20;
+		String logDir = null; // no log by default
+		int durability = MapLog.BATCH;
+		int snapshot = 60;
+		boolean nio = false; // blocking sockets by default
+		MapStore base = null; // storage engine
+		long maxMemory = 0; // no memory limit by default
+		int eviction = BoundedStore.LRU;
+		boolean sorted = false; // hash index only by default
+		String backups = null; // no replication by default
+		long maxLag = 10000;
+		boolean backup = false;
+		int queueSize = 0; // no request queue by default
+		double target = 5, interval = 100;
+		boolean busyReplies = true;
+		long fragMemory = 64 << 20, fragTimeout = 2000;
+		int maxWatches = 100000; long lease = 10000;
+		for (String arg : args) {
+			if (arg.startsWith("threads="))
+				threads = Integer.parseInt(arg.substring(8));
+			else if (arg.startsWith("report="))
+				report = Integer.parseInt(arg.substring(7));
+			else if (arg.startsWith("dedup="))
+				dedup = Double.parseDouble(arg.substring(6));
+			else if (arg.startsWith("dedupsize="))
+				dedupSize = Integer.parseInt(arg.substring(10));
+			else if (arg.startsWith("dedupmem="))
+				dedupMemory = bytes(arg.substring(9));
+			else if (arg.startsWith("log="))
+				logDir = arg.substring(4);
+			else if (arg.equals("durability=none"))
+				durability = MapLog.NONE;
+			else if (arg.equals("durability=batch"))
+				durability = MapLog.BATCH;
+			else if (arg.equals("durability=write"))
+				durability = MapLog.WRITE;
+			else if (arg.startsWith("snapshot="))
+				snapshot = Integer.parseInt(arg.substring(9));
+			else if (arg.equals("store=heap"))
+				base = new HeapStore();
+			else if (arg.equals("store=offheap"))
+				base = offHeap = new OffHeapStore();
+			else if (arg.equals("io=socket"))
+				nio = false;
+			else if (arg.equals("io=nio"))
+				nio = true;
+			else if (arg.startsWith("maxmemory="))
+				maxMemory = bytes(arg.substring(10));
+			else if (arg.equals("eviction=lru"))
+				eviction = BoundedStore.LRU;
+			else if (arg.equals("eviction=lfu"))
+				eviction = BoundedStore.LFU;
+			else if (arg.equals("index=hash"))
+				sorted = false;
+			else if (arg.equals("index=sorted"))
+				sorted = true;
+			else if (arg.startsWith("backups="))
+				backups = arg.substring(8);
+			else if (arg.startsWith("maxlag="))
+				maxLag = Long.parseLong(arg.substring(7));
+			else if (arg.equals("role=primary"))
+				backup = false;
+			else if (arg.equals("role=backup"))
+				backup = true;
+			else if (arg.startsWith("queue="))
+				queueSize = Integer.parseInt(arg.substring(6));
+			else if (arg.startsWith("target="))
+				target = Double.parseDouble(arg.substring(7));
+			else if (arg.startsWith("interval="))
+				interval = Double.parseDouble(arg.substring(9));
+			else if (arg.equals("overload=busy"))
+				busyReplies = true;
+			else if (arg.equals("overload=drop"))
+				busyReplies = false;
+			else if (arg.startsWith("fragmem="))
+				fragMemory = bytes(arg.substring(8));
+			else if (arg.startsWith("fragtimeout="))
+				fragTimeout = Long.parseLong(arg.substring(12));
+			else if (arg.startsWith("dump="))
+				dumpFile = new File(arg.substring(5));
+			else if (arg.equals("dumpformat=compact"))
+				mappedDump = false;
+			else if (arg.equals("dumpformat=mapped"))
+				mappedDump = true;
+			else if (arg.startsWith("watches="))
+				maxWatches = Integer.parseInt(arg.substring(8));
+			else if (arg.startsWith("lease="))
+				lease = Long.parseLong(arg.substring(6));
+			else
+				port = Integer.parseInt(arg);
+		}
+		if (threads < 1 || dedupSize < 1 || dedupMemory < 1
+		    || snapshot < 1 || maxMemory < 0 || maxLag < 1
+		    || (backup && backups != null) || queueSize < 0
+		    || (queueSize > 0 && nio) || target <= 0 || interval <= 0
+		    || fragMemory < 0 || fragTimeout < 1 || maxWatches < 0
+		    || lease < 1) {
+			System.err.println("usage: MapServer [port] "
+				+ "[threads=N] [report=secs] "
+				+ "[dedup=secs] [dedupsize=N] "
+				+ "[dedupmem=bytes] [log=dir] "
+				+ "[durability=none|batch|write] "
+				+ "[snapshot=secs] [store=heap|offheap] "
+				+ "[io=socket|nio] [maxmemory=bytes] "
+				+ "[eviction=lru|lfu] [index=hash|sorted] "
+				+ "[backups=host:port,...] [maxlag=N] "
+				+ "[role=primary|backup] [queue=N] "
+				+ "[target=ms] [interval=ms] "
+				+ "[overload=busy|drop] [fragmem=bytes] "
+				+ "[fragtimeout=ms] [dump=file] "
+				+ "[dumpformat=compact|mapped] [watches=N] "
+				+ "[lease=ms]");
+			System.exit(1);
+		}
+		if (dedup > 0)
+			replies = new ReplyCache(dedupSize, dedupMemory, dedup);
+		// up to 4 stripes per worker, each with room for the largest
+		// request
+		fragments = new Fragments[(int) Math.max(1, Math.min(4L * threads,
+					fragMemory / Fragments.MAX_MESSAGE))];
+		for (int i = 0; i < fragments.length; i++)
+			fragments[i] = new Fragments(fragMemory / fragments.length,
+						     fragTimeout);
+		if (maxWatches > 0) watches = new Watches(maxWatches, lease);
+		if (base == null) base = new HeapStore();
+		// Serve the last dump in place if it is mapped (see below)
+		boolean load = dumpFile != null && logDir == null
+			       && dumpFile.exists();
+		int longest = 0; // of the values already in base
+		MappedStore m = null;
+		if (load && MappedStore.isMapped(dumpFile)) {
+			long t0 = System.nanoTime();
+			m = new MappedStore(dumpFile, base);
+			base = m;
+			longest = m.longest();
+			load = false;
+			System.out.printf("MapServer: mapped %d pairs from %s "
+				+ "in %.1f ms%n", m.mapped(), dumpFile,
+				(System.nanoTime() - t0) / 1e6);
+		}
+		if (dumpFile != null)
+			base = dumper = new SnapshotStore(base, longest);
+		if (sorted) base = index = new SortedStore(base);
+		if (maxMemory > 0)
+			base = bounded = new BoundedStore(base, maxMemory,
+								eviction);
+		store = new ExpiringStore(base);
+		if (dumper != null) dumper.setDeadlines(store::deadline);
+		// a pair that expires or is evicted changes for the watchers
+		if (watches != null) {
+			store.setListener(watches::changed);
+			if (bounded != null) bounded.setListener(watches::changed);
+		}
+		store.start();
+
+		// Load the last dump, unless the pairs are restored from the log,
+		// or give back their deadlines to the pairs of a mapped one;
+		// the pairs that have expired since are left out
+		long now = System.currentTimeMillis();
+		if (load) {
+			long n = SnapshotStore.read(dumpFile,
+				(k, v, off, len, deadline) -> {
+					if (deadline == 0)
+						store.put(k, v, off, len);
+					else if (deadline > now)
+						store.put(k, v, off, len, deadline);
+				});
+			System.out.println("MapServer: loaded " + n
+				+ " pairs from " + dumpFile);
+		} else if (m != null) {
+			m.forEachDeadline((k, deadline) -> {
+				if (deadline > now) store.setDeadline(k, deadline);
+				else store.remove(k);
+			});
+		}
+
+		// Restore the pairs from the log, and take snapshots regularly
+		if (logDir != null) {
+			log = new MapLog(new File(logDir), durability);
+			long n = log.recover(store);
+			System.out.println("MapServer: restored " + store.size()
+				+ " pairs, replayed " + n + " log records");
+			log.start();
+			final int period = snapshot;
+			Thread t = new Thread(() -> {
+				while (true) {
+					try {
+						Thread.sleep(period * 1000L);
+						log.checkpoint(store);
+					} catch(Exception e) {
+						System.err.println("MapServer: "
+							+ "snapshot failed: " + e);
+					}
+				}
+			}, "snapshot");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		// Stream the changes to the backups, or apply those of a primary
+		if (backups != null) {
+			repl = new Replicator(backups.split(","), maxLag);
+			repl.start();
+		}
+		readOnly = backup;
+
+		// 2. Open UDP socket(s), one per worker if the kernel can
+		// spread packets over several sockets bound to the same port
+		// (unless the packets are queued by a single receiving thread)
+		DatagramSocket probe = new DatagramSocket(null);
+		boolean reuse = threads > 1 && queueSize == 0
+				&& probe.supportedOptions()
+				.contains(StandardSocketOptions.SO_REUSEPORT);
+		probe.close();
+		DatagramSocket sock = nio ? null : openSocket(port, reuse);
+		DatagramChannel ch = nio ? openChannel(port, reuse) : null;
+		// invalidations are sent from the server's port (if the
+		// channel's socket buffer is full, they are lost, as they
+		// may be on the way)
+		if (watches != null && nio)
+			watches.setSender((b, n, to) ->
+				ch.send(ByteBuffer.wrap(b, 0, n), to));
+		else if (watches != null)
+			watches.setSender((b, n, to) ->
+				sock.send(new DatagramPacket(b, n, to)));
+
+		// 3. Start the workers, and the receiving thread of the queue
+		RequestQueue queue = queueSize == 0 ? null : new RequestQueue(
+			queueSize, threads, MAX_REQUEST, target, interval);
+		final boolean busy = busyReplies;
+		if (queue != null)
+			new Thread(() -> receive(sock, queue, busy), "receiver")
+				.start();
+		for (int i = 0; i < threads; i++) {
+			Thread t;
+			if (queue != null) {
+				t = new Thread(() -> work(sock, queue, busy),
+					       "worker-" + i);
+			} else if (nio) {
+				DatagramChannel c = (reuse && i > 0) ?
+					openChannel(port, true) : ch;
+				t = new Thread(() -> serveNio(c), "worker-" + i);
+			} else {
+				DatagramSocket s = (reuse && i > 0) ?
+					openSocket(port, true) : sock;
+				t = new Thread(() -> serve(s), "worker-" + i);
+			}
+			t.start();
+		}
+
+		// 4. Report the throughput periodically
+		long replSent = 0, replDone = 0;
+		while (report > 0) {
+			long before = Stats.requests();
+			Thread.sleep(report * 1000L);
+			long count = Stats.requests() - before;
+			System.out.println("MapServer: " + threads + " worker(s), "
+				+ (count / report) + " requests/sec");
+			if (bounded != null) {
+				long hits = bounded.hits();
+				long gets = hits + bounded.misses();
+				System.out.printf("MapServer: hit ratio %.3f, "
+					+ "%d evictions, %d bytes in %d pairs%n",
+					gets == 0 ? 0.0 : (double) hits / gets,
+					bounded.evictions(), bounded.memory(),
+					bounded.size());
+			}
+			if (queue != null) {
+				System.out.printf("MapServer: queue depth %d, "
+					+ "longest wait %.1f ms, %d rejected, "
+					+ "%d shed%n", queue.depth(),
+					queue.maxSojourn() / 1e6,
+					queue.rejected(), queue.shed());
+			}
+			if (repl != null) {
+				long sent = repl.sent();
+				System.out.println("MapServer: replicated "
+					+ ((sent - replSent) / report)
+					+ " changes/sec, last " + repl.last()
+					+ ", resent " + repl.resent() + "; "
+					+ repl.lags());
+				replSent = sent;
+			}
+			if (backup) {
+				long n = applied.sum();
+				System.out.println("MapServer: applied "
+					+ ((n - replDone) / report)
+					+ " changes/sec from the primary"
+					+ (readOnly ? "" : " (promoted)"));
+				replDone = n;
+			}
+		}
+	}
+
+	// Parse a number of bytes, with an optional suffix k, m or g
+	private static long bytes(String s) {
+		long unit = 1;
+		switch (Character.toLowerCase(s.charAt(s.length() - 1))) {
+		case 'k': unit = 1L << 10; break;
+		case 'm': unit = 1L << 20; break;
+		case 'g': unit = 1L << 30; break;
 		}
+		if (unit > 1) s = s.substring(0, s.length() - 1);
+		return Long.parseLong(s) * unit;
 	}
-}
\ No newline at end of file
+}
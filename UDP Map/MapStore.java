@@ -0,0 +1,58 @@
+/** Storage engine holding the (key, value) pairs of a map server.
+ *
+ *  Keys and values are byte strings (ASCII text in practice). Methods
+ *  take the key as a ByteKey, which may be a probe pointing into a
+ *  receive buffer; an implementation that needs to keep the key or the
+ *  value must copy it. All methods may be called by several threads at
+ *  the same time.
+ */
+
+import java.io.IOException;
+
+public interface MapStore {
+	/** Visitor for the pairs of a store (see forEach). */
+	interface Visitor {
+		void visit(ByteKey key, byte[] value, int off, int len)
+							throws IOException;
+	}
+
+	/** Receiver of the keys of the pairs that a store removes on its
+	 *  own, such as expired or evicted ones.
+	 */
+	interface Listener {
+		void removed(ByteKey key);
+	}
+
+	/** Look up a key and copy its value into out.
+	 *  @param key is the key to look up
+	 *  @param out is the buffer the value is copied to; it must have
+	 *  room for the largest value
+	 *  @param pos is the position in out the value is copied to
+	 *  @return the position following the value, or -1 if the key
+	 *  is not in the store
+	 */
+	int get(ByteKey key, byte[] out, int pos);
+
+	/** Add a pair, or replace the value of an existing key.
+	 *  @param key is the key
+	 *  @param value holds the value in value[off..off+len)
+	 *  @return true if the key was already in the store
+	 */
+	boolean put(ByteKey key, byte[] value, int off, int len);
+
+	/** Remove a pair.
+	 *  @param key is the key of the pair to remove
+	 *  @return true if the key was in the store
+	 */
+	boolean remove(ByteKey key);
+
+	/** Return the number of pairs in the store. */
+	int size();
+
+	/** Call v.visit() for every pair in the store. Pairs changed while
+	 *  forEach runs may or may not be visited, with either value; the
+	 *  key and value passed to the visitor are only valid during the
+	 *  call.
+	 */
+	void forEach(Visitor v) throws IOException;
+}
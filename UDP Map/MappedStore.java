@@ -0,0 +1,375 @@
+/** Storage engine serving the pairs of a snapshot file in place, with
+ *  the changes made since kept in another store.
+ *
+ *  Loading a snapshot of tens of millions of pairs into a store takes
+ *  minutes; a MappedStore instead maps the file into memory and looks
+ *  keys up in it directly, so a server can answer gets as soon as the
+ *  file is mapped, and the pages of the file are read by the operating
+ *  system as the keys on them are used. The file is never written.
+ *  Puts go to the overlay, a store that is searched before the file;
+ *  a key of the file that is put or removed is added to a set of hidden
+ *  keys, whose records in the file are ignored from then on.
+ *
+ *  A mapped snapshot file is made of a header
+ *	magic (int), length of the longest value (int), number of pairs,
+ *	number of slots, end of the records (longs)
+ *  followed by the records, each
+ *	key length (int), value length (int), key bytes, value bytes
+ *  then, at the next multiple of 8, an open addressing (linear probing)
+ *  hash table of longs, each holding the top 24 bits of the key's hash
+ *  and the offset of its record (0 if empty), and the deadlines of the
+ *  pairs that have one (see ExpiringStore), as pairs of longs
+ *	offset of the record, deadline (ms since the epoch)
+ *  up to the end of the file (files of older versions end with the
+ *  table, and have none); the server gives them back to the pairs when
+ *  it maps the file (see forEachDeadline). The file is mapped in
+ *  chunks of 1 GB; a record never crosses the end of a chunk, the rest
+ *  of which is then padding (starting with a key length of -1 if there
+ *  is room for one). The header is written last, so a file that was
+ *  not completely written has no magic number.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MappedStore implements MapStore {
+	private static final int MAGIC = 0x4d415049; // "MAPI"
+	private static final int HEADER = 32;
+	private static final int REC_HEADER = 8;
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK = 1L << CHUNK_BITS;
+
+	private MappedByteBuffer[] chunks;
+	private long count;		// pairs in the file
+	private long slots;		// size of the table (a power of 2)
+	private long end;		// end of the records
+	private long table;		// offset of the table
+	private long length;		// length of the file
+	private int longest;		// length of the longest value
+
+	private MapStore overlay;	// pairs put since the file was written
+	// keys of the file that have been put or removed since
+	private Set<ByteKey> hidden = ConcurrentHashMap.newKeySet();
+	private AtomicInteger size;
+
+	// locks that make changing the overlay and the hidden keys atomic
+	private final Object[] locks = new Object[64];
+
+	/** Map a snapshot file.
+	 *  @param f is a file written by a Writer
+	 *  @param overlay is the (empty) store to keep changes in
+	 */
+	MappedStore(File f, MapStore overlay) throws IOException {
+		this.overlay = overlay;
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		try (FileChannel ch = FileChannel.open(f.toPath(),
+						StandardOpenOption.READ)) {
+			chunks = map(ch, FileChannel.MapMode.READ_ONLY);
+		}
+		if (chunks.length == 0 || chunks[0].limit() < HEADER
+		    || chunks[0].getInt(0) != MAGIC)
+			throw new IOException("bad snapshot " + f);
+		count = chunks[0].getLong(8);
+		slots = chunks[0].getLong(16);
+		end = chunks[0].getLong(24);
+		table = (end + 7) & ~7L;
+		longest = chunks[0].getInt(4);
+		// a file that does not record it may hold any value
+		if (longest == 0 && count > 0) longest = Fragments.MAX_MESSAGE;
+		length = f.length();
+		if (count < 0 || count > Integer.MAX_VALUE || longest < 0
+		    || Long.bitCount(slots) != 1 || slots <= count
+		    || table + 8 * slots > length
+		    || (length - table - 8 * slots) % 16 != 0)
+			throw new IOException("bad snapshot " + f);
+		size = new AtomicInteger((int) count);
+	}
+
+	/** Map a whole file, in chunks. */
+	private static MappedByteBuffer[] map(FileChannel ch,
+			FileChannel.MapMode mode) throws IOException {
+		long length = ch.size();
+		MappedByteBuffer[] chunks =
+			new MappedByteBuffer[(int) ((length + CHUNK - 1) / CHUNK)];
+		for (int i = 0; i < chunks.length; i++) {
+			long start = (long) i << CHUNK_BITS;
+			chunks[i] = ch.map(mode, start,
+					   Math.min(CHUNK, length - start));
+		}
+		return chunks;
+	}
+
+	/** Check if f is a mapped snapshot file. */
+	public static boolean isMapped(File f) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+						new FileInputStream(f))) {
+			return in.readInt() == MAGIC;
+		} catch(EOFException e) {
+			return false;
+		}
+	}
+
+	/** Scramble a hash code, as OffHeapStore does. */
+	private static int spread(int hash) { return hash * 0x9e3779b9; }
+
+	private ByteBuffer chunk(long off) {
+		return chunks[(int) (off >>> CHUNK_BITS)];
+	}
+
+	private static int pos(long off) { return (int) (off & (CHUNK - 1)); }
+
+	/** Return the offset of the record of key in the file, or -1. */
+	private long find(ByteKey key) {
+		int h = spread(key.hashCode());
+		long tag = (long) (h >>> 8) << 40;
+		long mask = slots - 1;
+		for (long i = (h & 0xffffffffL) & mask; ; i = (i + 1) & mask) {
+			long s = chunk(table + 8 * i).getLong(pos(table + 8 * i));
+			if (s == 0) return -1;
+			if ((s & ~((1L << 40) - 1)) == tag
+			    && matches(s & ((1L << 40) - 1), key))
+				return s & ((1L << 40) - 1);
+		}
+	}
+
+	/** Check if the record at rec holds key. */
+	private boolean matches(long rec, ByteKey key) {
+		ByteBuffer b = chunk(rec);
+		int p = pos(rec);
+		int klen = b.getInt(p);
+		if (klen != key.length()) return false;
+		for (int j = 0; j < klen; j++)
+			if (b.get(p + REC_HEADER + j) != key.byteAt(j))
+				return false;
+		return true;
+	}
+
+	/** Check if key has a record in the file that is not hidden. */
+	private boolean inFile(ByteKey key) {
+		return !hidden.contains(key) && find(key) >= 0;
+	}
+
+	private Object lock(ByteKey key) { return locks[key.hashCode() & 63]; }
+
+	public int get(ByteKey key, byte[] out, int pos) {
+		int e = overlay.get(key, out, pos);
+		if (e >= 0) return e;
+		// a put adds the pair to the overlay before hiding the key,
+		// so a key hidden since the lookup above is now there
+		if (hidden.contains(key)) return overlay.get(key, out, pos);
+		long rec = find(key);
+		if (rec < 0) return -1;
+		ByteBuffer b = chunk(rec);
+		int p = pos(rec);
+		int klen = b.getInt(p), vlen = b.getInt(p + 4);
+		b.get(p + REC_HEADER + klen, out, pos, vlen);
+		return pos + vlen;
+	}
+
+	public boolean put(ByteKey key, byte[] value, int off, int len) {
+		synchronized (lock(key)) {
+			boolean found = overlay.put(key, value, off, len);
+			if (inFile(key)) {
+				hidden.add(key.copy());
+				found = true;
+			}
+			if (!found) size.incrementAndGet();
+			return found;
+		}
+	}
+
+	public boolean remove(ByteKey key) {
+		synchronized (lock(key)) {
+			boolean found = false;
+			if (inFile(key)) {
+				hidden.add(key.copy());
+				found = true;
+			}
+			if (overlay.remove(key)) found = true;
+			if (found) size.decrementAndGet();
+			return found;
+		}
+	}
+
+	public int size() { return size.get(); }
+
+	public void forEach(Visitor v) throws IOException {
+		overlay.forEach(v);
+		ByteKey key = new ByteKey();
+		byte[] buf = new byte[256];
+		long rec = HEADER;
+		while (rec < end) {
+			ByteBuffer b = chunk(rec);
+			int p = pos(rec);
+			int klen = CHUNK - p < REC_HEADER ? -1 : b.getInt(p);
+			if (klen < 0) { // padding up to the next chunk
+				rec = (rec | (CHUNK - 1)) + 1;
+				continue;
+			}
+			int vlen = b.getInt(p + 4);
+			if (klen + vlen > buf.length)
+				buf = new byte[klen + vlen];
+			b.get(p + REC_HEADER, buf, 0, klen + vlen);
+			key.set(buf, 0, klen);
+			if (!hidden.contains(key)) v.visit(key, buf, klen, vlen);
+			rec += REC_HEADER + klen + vlen;
+		}
+	}
+
+	/** Call v.visit() for every pair of the file that has a deadline. */
+	public void forEachDeadline(ExpiringStore.DeadlineVisitor v)
+							throws IOException {
+		ByteKey key = new ByteKey();
+		byte[] buf = new byte[256];
+		for (long o = table + 8 * slots; o < length; o += 16) {
+			long rec = chunk(o).getLong(pos(o));
+			long deadline = chunk(o + 8).getLong(pos(o + 8));
+			if (rec < HEADER || rec >= end)
+				throw new IOException("bad deadline in snapshot");
+			ByteBuffer b = chunk(rec);
+			int p = pos(rec);
+			int klen = b.getInt(p);
+			if (klen > buf.length) buf = new byte[klen];
+			b.get(p + REC_HEADER, buf, 0, klen);
+			v.visit(key.set(buf, 0, klen), deadline);
+		}
+	}
+
+	/** Return the number of pairs in the file. */
+	public long mapped() { return count; }
+
+	/** Return the length of the longest value in the file. */
+	public int longest() { return longest; }
+
+	/** Return the number of keys of the file changed since. */
+	public int hidden() { return hidden.size(); }
+
+	/** Writes a mapped snapshot file, one pair at a time. */
+	public static class Writer implements Visitor,
+				SnapshotStore.TimedVisitor, Closeable {
+		private File f;
+		private DataOutputStream out;
+		private long pos = HEADER;	// end of the last record
+		private long[] offsets = new long[1024];
+		private int[] hashes = new int[1024];
+		private int count = 0;
+		// records with a deadline, and their deadlines
+		private long[] timed = new long[16], deadlines = new long[16];
+		private int timedCount = 0;
+		private int longest = 0;	// length of the longest value
+
+		/** Start writing file f. */
+		public Writer(File f) throws IOException {
+			this.f = f;
+			out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(f), 1 << 16));
+			out.write(new byte[HEADER]); // written last
+		}
+
+		/** Add a pair; each key must be added only once. */
+		public void visit(ByteKey key, byte[] value, int off, int len)
+							throws IOException {
+			visit(key, value, off, len, 0);
+		}
+
+		/** Add a pair that expires at deadline (in ms since the
+		 *  epoch), or never if it is 0; each key must be added only
+		 *  once.
+		 */
+		public void visit(ByteKey key, byte[] value, int off, int len,
+				  long deadline) throws IOException {
+			long size = REC_HEADER + key.length() + len;
+			if (size > CHUNK) throw new IOException("pair too large");
+			if (pos + size >= 1L << 40)
+				throw new IOException("snapshot too large");
+			long room = CHUNK - pos(pos);
+			if (size > room) { // pad up to the next chunk
+				if (room >= 4) { out.writeInt(-1); room -= 4; }
+				for (; room > 0; room--) out.write(0);
+				pos = (pos | (CHUNK - 1)) + 1;
+			}
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, 2 * count);
+				hashes = Arrays.copyOf(hashes, 2 * count);
+			}
+			offsets[count] = pos;
+			hashes[count++] = spread(key.hashCode());
+			if (deadline != 0) {
+				if (timedCount == timed.length) {
+					timed = Arrays.copyOf(timed, 2 * timedCount);
+					deadlines = Arrays.copyOf(deadlines,
+								  2 * timedCount);
+				}
+				timed[timedCount] = pos;
+				deadlines[timedCount++] = deadline;
+			}
+			if (len > longest) longest = len;
+			out.writeInt(key.length());
+			out.writeInt(len);
+			key.writeTo(out);
+			out.write(value, off, len);
+			pos += size;
+		}
+
+		/** Close the file, leaving it incomplete unless finish() has
+		 *  been called.
+		 */
+		public void close() throws IOException { out.close(); }
+
+		/** Write the table, the deadlines and the header, and force
+		 *  the file to disk.
+		 *  @return the number of pairs written
+		 */
+		public long finish() throws IOException {
+			out.close();
+			// at most half full
+			long slots = Long.highestOneBit(Math.max(8, count) * 4L);
+			long table = (pos + 7) & ~7L;
+			try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+				// zeros: empty
+				raf.setLength(table + 8 * slots + 16L * timedCount);
+				FileChannel ch = raf.getChannel();
+				MappedByteBuffer[] chunks =
+					map(ch, FileChannel.MapMode.READ_WRITE);
+				long mask = slots - 1;
+				for (int j = 0; j < count; j++) {
+					int h = hashes[j];
+					long i = (h & 0xffffffffL) & mask;
+					while (true) {
+						long o = table + 8 * i;
+						ByteBuffer b = chunks[(int) (o >>> CHUNK_BITS)];
+						if (b.getLong(pos(o)) == 0) {
+							b.putLong(pos(o),
+								(long) (h >>> 8) << 40
+								| offsets[j]);
+							break;
+						}
+						i = (i + 1) & mask;
+					}
+				}
+				for (int j = 0; j < timedCount; j++) {
+					long o = table + 8 * slots + 16L * j;
+					chunks[(int) (o >>> CHUNK_BITS)]
+						.putLong(pos(o), timed[j]);
+					o += 8;
+					chunks[(int) (o >>> CHUNK_BITS)]
+						.putLong(pos(o), deadlines[j]);
+				}
+				for (MappedByteBuffer b : chunks) b.force();
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				header.putInt(MAGIC).putInt(longest).putLong(count)
+				      .putLong(slots).putLong(pos).flip();
+				ch.write(header, 0);
+				ch.force(true);
+			}
+			return count;
+		}
+	}
+}
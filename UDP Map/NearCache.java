@@ -0,0 +1,237 @@
+/** Client of a MapServer that caches the values it gets.
+ *
+ *  A get that misses the cache is sent as a watch request (see
+ *  Watches), which registers the client with the server for a lease;
+ *  the reply ("ok:v" or "no match") is then kept until the server sends
+ *  an invalidation for the key, or the lease is over, whichever comes
+ *  first, and gets of the key are answered from the cache meanwhile.
+ *  The lease must not be longer than the server's (option lease), so
+ *  that a lost invalidation leaves the cache stale for at most a lease.
+ *  A put or remove through the cache goes to the server, and drops the
+ *  key from the cache.
+ *
+ *  The memory of the cache is bounded: when the keys and values kept
+ *  take more than the limit, the least recently used are dropped.
+ *
+ *  A thread receives the packets from the server, applies the
+ *  invalidations at once, and hands the replies to the caller. A reply
+ *  to a watch is not cached if its key is invalidated while it is being
+ *  fetched, since the invalidation may have overtaken it. Requests are
+ *  sent one at a time (callers wait for their turn), with a tag, and
+ *  sent again if no reply comes in time.
+ *
+ *  Example:
+ *	NearCache c = new NearCache("localhost", 30123, 1 << 20, 10000);
+ *	String r = c.get("k");	// "ok:v" or "no match"
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class NearCache implements Runnable {
+	private static final int OVERHEAD = 64;	// bytes per entry, roughly
+
+	/** A reply kept in the cache. */
+	private static class Entry {
+		final String reply;
+		final long expires;	// end of the lease (ns)
+		Entry(String reply, long expires) {
+			this.reply = reply; this.expires = expires;
+		}
+	}
+
+	private DatagramSocket sock;
+	private Fragments fragments = new Fragments(1 << 24, 2000);
+	private long maxBytes;		// limit on the memory of the cache
+	private long lease;		// ns a reply is kept for
+	private int timeout = 200;	// ms before a request is sent again
+	private int retries = 5;	// times a request is sent again
+
+	// replies kept, least recently used first; guarded by this
+	private LinkedHashMap<String, Entry> cache =
+				new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;		// memory of the cache
+	private String fetching;	// key of the watch being sent
+	private boolean invalidated;	// fetching was invalidated
+	private long hits = 0, misses = 0, invalidations = 0;
+
+	// reply to the request being sent; guarded by this
+	private long tag = 0;
+	private String reply;
+
+	// held while sending a request, one at a time
+	private final Object sending = new Object();
+
+	/** Create a cache of the pairs of a server.
+	 *  @param maxBytes is the limit on the memory taken by the cache
+	 *  @param lease is the time a value is kept, in ms
+	 */
+	public NearCache(String host, int port, long maxBytes, long lease)
+							throws IOException {
+		this.maxBytes = maxBytes;
+		this.lease = lease * 1000000L;
+		sock = new DatagramSocket();
+		// only the server's packets are received
+		sock.connect(new InetSocketAddress(host, port));
+		Thread t = new Thread(this, "near-cache");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Set the time before a request is sent again, and how many times. */
+	public void setTimeout(int ms, int retries) {
+		timeout = ms; this.retries = retries;
+	}
+
+	/** Return the response to get:key, from the cache if possible. */
+	public String get(String key) throws IOException {
+		synchronized (this) {
+			Entry e = cache.get(key);
+			if (e != null && e.expires - System.nanoTime() > 0) {
+				hits++;
+				return e.reply;
+			}
+			if (e != null) drop(key);
+			misses++;
+		}
+		synchronized (sending) {
+			long start = System.nanoTime();
+			synchronized (this) {
+				fetching = key; invalidated = false;
+			}
+			String r = call("watch:" + key);
+			synchronized (this) {
+				fetching = null;
+				if (!invalidated && (r.startsWith("ok:")
+						     || r.equals("no match")))
+					add(key, new Entry(r, start + lease));
+			}
+			return r;
+		}
+	}
+
+	/** Return the response to put:key:value. */
+	public String put(String key, String value) throws IOException {
+		return change(key, "put:" + key + ":" + value);
+	}
+
+	/** Return the response to remove:key. */
+	public String remove(String key) throws IOException {
+		return change(key, "remove:" + key);
+	}
+
+	private String change(String key, String request) throws IOException {
+		synchronized (this) { drop(key); }
+		synchronized (sending) { return call(request); }
+	}
+
+	/** Add an entry, making room if needed; the caller holds the lock. */
+	private void add(String key, Entry e) {
+		drop(key);
+		cache.put(key, e);
+		bytes += size(key, e);
+		Iterator<java.util.Map.Entry<String, Entry>> it =
+						cache.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			java.util.Map.Entry<String, Entry> old = it.next();
+			bytes -= size(old.getKey(), old.getValue());
+			it.remove();
+		}
+	}
+
+	/** Drop a key from the cache; the caller holds the lock. */
+	private void drop(String key) {
+		Entry e = cache.remove(key);
+		if (e != null) bytes -= size(key, e);
+	}
+
+	private static long size(String key, Entry e) {
+		return OVERHEAD + key.length() + e.reply.length();
+	}
+
+	/** Send a request and return the reply; the caller holds sending. */
+	private String call(String request) throws IOException {
+		long t;
+		synchronized (this) {
+			t = ++tag;
+			reply = null;
+		}
+		byte[] b = (t + "#" + request).getBytes(StandardCharsets.US_ASCII);
+		DatagramPacket pkt = new DatagramPacket(b, b.length);
+		for (int tries = 0; ; tries++) {
+			Fragments.send(sock, pkt, b, b.length);
+			synchronized (this) {
+				long end = System.currentTimeMillis() + timeout;
+				long left;
+				while (reply == null && (left = end
+					- System.currentTimeMillis()) > 0) {
+					try {
+						wait(left);
+					} catch(InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				if (reply != null) return reply;
+			}
+			if (tries == retries)
+				throw new SocketTimeoutException("no reply");
+		}
+	}
+
+	/** Receive the packets from the server. */
+	public void run() {
+		byte[] buf = new byte[65535];
+		DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+		while (!sock.isClosed()) {
+			try {
+				int len = fragments.receive(sock, pkt);
+				String s = new String(fragments.data(), 0, len,
+						      StandardCharsets.US_ASCII);
+				if (s.startsWith("inval:")) {
+					invalidate(s.substring(6));
+					continue;
+				}
+				int hash = s.indexOf('#');
+				if (hash < 0) continue;
+				long t = Long.parseLong(s.substring(0, hash));
+				synchronized (this) {
+					if (t != tag) continue; // late reply
+					reply = s.substring(hash + 1);
+					notifyAll();
+				}
+			} catch(NumberFormatException e) {
+				// not a reply to a request of ours
+			} catch(IOException e) {
+				if (!sock.isClosed())
+					System.err.println("NearCache:run: " + e);
+			}
+		}
+	}
+
+	private synchronized void invalidate(String key) {
+		invalidations++;
+		drop(key);
+		if (key.equals(fetching)) invalidated = true;
+	}
+
+	/** Return the number of gets answered from the cache, or not. */
+	public synchronized long hits() { return hits; }
+
+	public synchronized long misses() { return misses; }
+
+	/** Return the number of invalidations received. */
+	public synchronized long invalidations() { return invalidations; }
+
+	/** Return the memory taken by the cache, and the number of keys. */
+	public synchronized long bytes() { return bytes; }
+
+	public synchronized int size() { return cache.size(); }
+
+	public void close() { sock.close(); }
+}
@@ -0,0 +1,238 @@
+/** Storage engine keeping the pairs outside the Java heap.
+ *
+ *  The pairs are split over 64 segments by the hash of their key; each
+ *  segment has its own lock. A segment stores its pairs as records in
+ *  an arena, a direct ByteBuffer (so the garbage collector never sees
+ *  the pairs), and finds them with an open addressing (linear probing)
+ *  hash table of longs, each holding the key's hash and the offset of
+ *  the record. A record is
+ *	key length (int), value length (int), value capacity (int),
+ *	key bytes, value bytes (followed by unused capacity)
+ *  so a pair costs 12 bytes plus about 11 bytes of table on top of its
+ *  key and value.
+ *
+ *  New records are added at the top of the arena. A value is replaced
+ *  in place if it fits in the capacity of its record; otherwise, and on
+ *  removal, the old record becomes garbage. When the arena is full, its
+ *  live records are copied to a new arena, half again as large as the
+ *  live data, which also reclaims the garbage. Removal from the
+ *  table shifts entries back instead of leaving tombstones.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class OffHeapStore implements MapStore {
+	private static final int SEG_BITS = 6;
+	private static final int REC_HEADER = 12;
+
+	private Segment[] segs = new Segment[1 << SEG_BITS];
+
+	/** Initialize a new, empty OffHeapStore. */
+	OffHeapStore() {
+		for (int i = 0; i < segs.length; i++) segs[i] = new Segment();
+	}
+
+	/** Scramble a hash code, so that both its high bits (which select
+	 *  the segment) and low bits (which select the slot) are random.
+	 */
+	private static int spread(int hash) { return hash * 0x9e3779b9; }
+
+	private Segment segment(ByteKey key) {
+		return segs[spread(key.hashCode()) >>> (32 - SEG_BITS)];
+	}
+
+	public int get(ByteKey key, byte[] out, int pos) {
+		return segment(key).get(key, out, pos);
+	}
+
+	public boolean put(ByteKey key, byte[] value, int off, int len) {
+		return segment(key).put(key, value, off, len);
+	}
+
+	public boolean remove(ByteKey key) {
+		return segment(key).remove(key);
+	}
+
+	public int size() {
+		int n = 0;
+		for (Segment s : segs) n += s.count;
+		return n;
+	}
+
+	public void forEach(Visitor v) throws IOException {
+		ByteKey key = new ByteKey();
+		for (Segment s : segs) {
+			// copy the segment, so that it isn't locked while the
+			// visitor runs
+			byte[] copy; int[] recs;
+			synchronized (s) {
+				copy = new byte[s.top];
+				s.arena.get(0, copy, 0, s.top);
+				recs = new int[s.count];
+				int n = 0;
+				for (long slot : s.slots)
+					if (slot != 0) recs[n++] = (int) slot - 1;
+			}
+			ByteBuffer bb = ByteBuffer.wrap(copy);
+			for (int rec : recs) {
+				int klen = bb.getInt(rec), vlen = bb.getInt(rec + 4);
+				key.set(copy, rec + REC_HEADER, klen);
+				v.visit(key, copy, rec + REC_HEADER + klen, vlen);
+			}
+		}
+	}
+
+	/** Return the number of bytes of off-heap memory in use. */
+	public long memoryUsed() {
+		long n = 0;
+		for (Segment s : segs) n += s.arena.capacity();
+		return n;
+	}
+
+	/** One segment of the store; all methods hold the segment's lock. */
+	private static class Segment {
+		// table of hash << 32 | (offset of record + 1), 0 if empty
+		long[] slots = new long[16];
+		volatile int count = 0;		// number of pairs
+		ByteBuffer arena = ByteBuffer.allocateDirect(1 << 12);
+		int top = 0;			// end of the last record
+		int garbage = 0;		// bytes of dead records
+
+		/** Find the slot of key.
+		 *  @return the slot index, or ~index of the empty slot where
+		 *  the key would be inserted
+		 */
+		private int find(ByteKey key, int hash) {
+			int mask = slots.length - 1;
+			int i = spread(hash) & mask;
+			long s;
+			while ((s = slots[i]) != 0) {
+				if ((int) (s >>> 32) == hash
+				    && matches((int) s - 1, key))
+					return i;
+				i = (i + 1) & mask;
+			}
+			return ~i;
+		}
+
+		/** Check if the record at rec holds key. */
+		private boolean matches(int rec, ByteKey key) {
+			int klen = arena.getInt(rec);
+			if (klen != key.length()) return false;
+			for (int j = 0; j < klen; j++)
+				if (arena.get(rec + REC_HEADER + j) != key.byteAt(j))
+					return false;
+			return true;
+		}
+
+		private int recordSize(int rec) {
+			return REC_HEADER + arena.getInt(rec) + arena.getInt(rec + 8);
+		}
+
+		synchronized int get(ByteKey key, byte[] out, int pos) {
+			int i = find(key, key.hashCode());
+			if (i < 0) return -1;
+			int rec = (int) slots[i] - 1;
+			int klen = arena.getInt(rec), vlen = arena.getInt(rec + 4);
+			arena.get(rec + REC_HEADER + klen, out, pos, vlen);
+			return pos + vlen;
+		}
+
+		synchronized boolean put(ByteKey key, byte[] value, int off,
+					 int len) {
+			int hash = key.hashCode(), klen = key.length();
+			// make room first, since that moves records around
+			makeRoom(REC_HEADER + klen + len);
+			if (4 * (count + 1) > 3 * slots.length)
+				resize(2 * slots.length);
+
+			int i = find(key, hash);
+			boolean found = i >= 0;
+			if (found) {
+				int rec = (int) slots[i] - 1;
+				if (len <= arena.getInt(rec + 8)) {
+					// replace the value in place
+					arena.putInt(rec + 4, len);
+					arena.put(rec + REC_HEADER + klen, value,
+						  off, len);
+					return true;
+				}
+				garbage += recordSize(rec);
+			} else {
+				i = ~i; count++;
+			}
+			int rec = top;
+			arena.putInt(rec, klen).putInt(rec + 4, len)
+			     .putInt(rec + 8, len);
+			for (int j = 0; j < klen; j++)
+				arena.put(rec + REC_HEADER + j, key.byteAt(j));
+			arena.put(rec + REC_HEADER + klen, value, off, len);
+			top += REC_HEADER + klen + len;
+			slots[i] = ((long) hash << 32) | (rec + 1);
+			return found;
+		}
+
+		synchronized boolean remove(ByteKey key) {
+			int i = find(key, key.hashCode());
+			if (i < 0) return false;
+			garbage += recordSize((int) slots[i] - 1);
+			count--;
+			// shift back the entries that follow, until an empty
+			// slot, unless they are already at their home slot
+			int mask = slots.length - 1;
+			int hole = i;
+			for (int j = (i + 1) & mask; slots[j] != 0;
+			     j = (j + 1) & mask) {
+				int home = spread((int) (slots[j] >>> 32)) & mask;
+				if (((j - home) & mask) >= ((j - hole) & mask)) {
+					slots[hole] = slots[j];
+					hole = j;
+				}
+			}
+			slots[hole] = 0;
+			return true;
+		}
+
+		/** Rebuild the table with the given number of slots. */
+		private void resize(int n) {
+			long[] old = slots;
+			slots = new long[n];
+			for (long s : old) {
+				if (s == 0) continue;
+				int i = spread((int) (s >>> 32)) & (n - 1);
+				while (slots[i] != 0) i = (i + 1) & (n - 1);
+				slots[i] = s;
+			}
+		}
+
+		/** Make sure there are need free bytes at the top of the
+		 *  arena, by copying the live records to a new arena.
+		 */
+		private void makeRoom(int need) {
+			if (top + need <= arena.capacity()) return;
+			// leave half as much free space as live data, so
+			// that copying costs O(1) per byte added
+			long want = 3L * (top - garbage + need) / 2;
+			want = (want + 4095) & ~4095L;
+			if (want > Integer.MAX_VALUE)
+				throw new IllegalStateException(
+					"OffHeapStore: segment full");
+			ByteBuffer fresh = ByteBuffer.allocateDirect((int) want);
+			int newTop = 0;
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] == 0) continue;
+				int rec = (int) slots[i] - 1;
+				int klen = arena.getInt(rec);
+				int vlen = arena.getInt(rec + 4);
+				int size = REC_HEADER + klen + vlen;
+				fresh.put(newTop, arena, rec, size);
+				fresh.putInt(newTop + 8, vlen); // trim capacity
+				slots[i] = (slots[i] & 0xffffffff00000000L)
+					   | (newTop + 1);
+				newTop += size;
+			}
+			arena = fresh; top = newTop; garbage = 0;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/** Stream of the changes made to the map, sent to backup servers.
+ *
+ *  Every put and remove done by the primary server is appended as a
+ *  record (the text of the request, e.g. "put:k:v", where a put of a
+ *  pair that expires carries its deadline, "put:k:v:at=<ms>") and
+ *  numbered with a sequence number. A background thread sends the
+ *  records to every backup in order, packed into datagrams of the form
+ *	repl:<epoch>:<seq>\n<length>\n<record><length>\n<record>...
+ *  where seq is the number of the first record, and every record is
+ *  preceded by its length, so that a value may hold newlines (as
+ *  those of single requests may). A backup applies the
+ *  records that follow the last one it applied, ignores those it has
+ *  already applied and those after a gap, and replies with a cumulative
+ *  ack, "ack:<seq>", the number of the last record it applied. Records
+ *  that are not acked within RTO ms are sent again, starting after the
+ *  last ack (go-back-N). A record is kept until every live backup has
+ *  acked it.
+ *
+ *  The lag of a backup is the number of records appended but not yet
+ *  acked by it. When the lag of a live backup exceeds maxLag, throttle()
+ *  makes the primary's workers wait, so that a backup taking over never
+ *  misses more than maxLag changes. A backup that acks nothing for
+ *  DOWN_MS ms is considered down and no longer holds the primary back;
+ *  it is live again when its acks resume, provided the records it
+ *  misses are still kept.
+ *
+ *  The epoch is chosen when the primary starts, so that a backup can
+ *  tell a restarted primary, whose sequence numbers start again at 1,
+ *  from a late packet of the previous one.
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+public class Replicator implements Runnable {
+	private static final int RTO = 200;	// ms before records are resent
+	private static final int DOWN_MS = 2000; // ms before a backup is down
+	private static final int WINDOW = 4096;	// max records in flight
+
+	/** State of a backup. */
+	private static class Backup {
+		InetSocketAddress addr;
+		long acked = 0;		// last record acked
+		long sent = 0;		// last record sent
+		long progress;		// time of the last ack progress (ns)
+		long resent;		// time records were last resent (ns)
+		boolean down = false;
+	}
+
+	private final long epoch = System.currentTimeMillis();
+	private Backup[] backups;
+	private long maxLag;
+	private DatagramSocket sock;
+
+	// records kept, as a ring; records[head] is record number first
+	// guarded by this
+	private byte[][] records = new byte[1024][];
+	private long[] times = new long[1024];	// time appended (ns)
+	private int head = 0, count = 0;
+	private long first = 1;
+	private long next = 1;			// number of the next record
+
+	private long sentRecords = 0;		// metrics, guarded by this
+	private long resentRecords = 0;
+
+	/** Initialize a new Replicator.
+	 *  @param backups are the backup addresses, as "host:port"
+	 *  @param maxLag is the maximum number of records a live backup
+	 *  may lag behind
+	 */
+	Replicator(String[] backups, long maxLag) throws IOException {
+		this.backups = new Backup[backups.length];
+		long now = System.nanoTime();
+		for (int i = 0; i < backups.length; i++) {
+			int colon = backups[i].lastIndexOf(':');
+			Backup b = this.backups[i] = new Backup();
+			b.addr = new InetSocketAddress(
+				backups[i].substring(0, colon),
+				Integer.parseInt(backups[i].substring(colon + 1)));
+			b.progress = now;
+		}
+		this.maxLag = maxLag;
+		sock = new DatagramSocket();
+		sock.setSoTimeout(5);
+	}
+
+	/** Start the thread sending the records. */
+	public void start() {
+		Thread t = new Thread(this, "replicator");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Append a record; the caller must hold the lock of the key, so
+	 *  that the changes to a key are numbered in the order they are
+	 *  made.
+	 */
+	public void append(byte[] record) {
+		byte[] length = (record.length + "\n")
+				.getBytes(StandardCharsets.US_ASCII);
+		byte[] r = new byte[length.length + record.length];
+		System.arraycopy(length, 0, r, 0, length.length);
+		System.arraycopy(record, 0, r, length.length, record.length);
+		add(r);
+	}
+
+	private synchronized void add(byte[] record) {
+		if (count == records.length) {
+			byte[][] r = new byte[2 * count][];
+			long[] t = new long[2 * count];
+			for (int i = 0; i < count; i++) {
+				r[i] = records[(head + i) % count];
+				t[i] = times[(head + i) % count];
+			}
+			records = r; times = t; head = 0;
+		}
+		int i = (head + count++) % records.length;
+		records[i] = record;
+		times[i] = System.nanoTime();
+		next++;
+		notifyAll(); // wake up the sender
+	}
+
+	/** Wait until no live backup lags more than maxLag records. */
+	public synchronized void throttle() {
+		try {
+			while (lagging()) wait(RTO);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean lagging() {
+		for (Backup b : backups)
+			if (!b.down && next - 1 - b.acked > maxLag) return true;
+		return false;
+	}
+
+	/** Return the record numbered seq, which must be kept. */
+	private byte[] record(long seq) {
+		return records[(int) ((head + seq - first) % records.length)];
+	}
+
+	/** Drop the records acked by all the live backups. */
+	private void trim() {
+		long keep = next;
+		for (Backup b : backups)
+			if (!b.down) keep = Math.min(keep, b.acked + 1);
+		while (first < keep) {
+			records[head] = null;
+			head = (head + 1) % records.length;
+			count--; first++;
+		}
+	}
+
+	/** Build the packets to send to the backups, and update their state. */
+	private synchronized ArrayList<DatagramPacket> packets() {
+		ArrayList<DatagramPacket> packets = new ArrayList<>();
+		long now = System.nanoTime();
+		for (Backup b : backups) {
+			if (b.acked == next - 1) {
+				b.progress = now;
+				continue;
+			}
+			if (now - b.progress > DOWN_MS * 1000000L) {
+				if (!b.down) {
+					b.down = true;
+					System.err.println("Replicator: backup "
+						+ b.addr + " is down");
+					trim();
+					notifyAll(); // release throttled workers
+				}
+			}
+			if (b.down && b.acked + 1 < first) continue; // lost
+			// go back to the last ack when records are not acked
+			if (b.sent > b.acked
+			    && now - Math.max(b.progress, b.resent)
+			       > RTO * 1000000L) {
+				resentRecords += b.sent - b.acked;
+				b.sent = b.acked;
+				b.resent = now;
+			}
+			while (b.sent < next - 1 && b.sent - b.acked < WINDOW) {
+				byte[] header = ("repl:" + epoch + ":" + (b.sent + 1)
+					+ "\n").getBytes(StandardCharsets.US_ASCII);
+				int len = header.length;
+				long last = b.sent;
+				while (last < next - 1 && (last == b.sent ||
+				       len + record(last + 1).length
+				       <= Fragments.MAX_PACKET)) {
+					len += record(last + 1).length;
+					last++;
+				}
+				byte[] payload = new byte[len];
+				System.arraycopy(header, 0, payload, 0,
+						 header.length);
+				int pos = header.length;
+				for (long s = b.sent + 1; s <= last; s++) {
+					byte[] r = record(s);
+					System.arraycopy(r, 0, payload, pos, r.length);
+					pos += r.length;
+				}
+				sentRecords += last - b.sent;
+				b.sent = last;
+				packets.add(new DatagramPacket(payload, pos, b.addr));
+			}
+		}
+		return packets;
+	}
+
+	/** Process an ack from a backup. */
+	private synchronized void ack(InetSocketAddress from, long seq) {
+		for (Backup b : backups) {
+			if (!b.addr.equals(from) || seq <= b.acked) continue;
+			if (seq >= next) continue; // not from this epoch
+			b.acked = seq;
+			if (b.sent < seq) b.sent = seq;
+			b.progress = System.nanoTime();
+			if (b.down && seq + 1 >= first) {
+				b.down = false;
+				System.err.println("Replicator: backup "
+					+ b.addr + " is up");
+			}
+			trim();
+			notifyAll(); // release throttled workers
+		}
+	}
+
+	/** Send the records and receive the acks. */
+	public void run() {
+		byte[] buf = new byte[64];
+		DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+		while (true) {
+			try {
+				synchronized (this) {
+					if (idle()) wait(RTO);
+				}
+				// a single record may be larger than a packet
+				for (DatagramPacket p : packets())
+					Fragments.send(sock, p, p.getData(),
+						       p.getLength());
+				// receive the acks until none comes for a while
+				while (true) {
+					try {
+						sock.receive(pkt);
+					} catch (SocketTimeoutException e) {
+						break;
+					}
+					String s = new String(buf, 0, pkt.getLength(),
+						StandardCharsets.US_ASCII);
+					if (!s.startsWith("ack:")) continue;
+					ack((InetSocketAddress) pkt.getSocketAddress(),
+					    Long.parseLong(s.substring(4)));
+				}
+			} catch (Exception e) {
+				System.err.println("Replicator:run: " + e);
+			}
+		}
+	}
+
+	/** Check if all the records have been acked by the live backups. */
+	private boolean idle() {
+		for (Backup b : backups)
+			if (!b.down && b.acked < next - 1) return false;
+		return true;
+	}
+
+	/** Return the number of the last record appended. */
+	public synchronized long last() { return next - 1; }
+
+	/** Return the number of records sent, and sent again. */
+	public synchronized long sent() { return sentRecords; }
+
+	public synchronized long resent() { return resentRecords; }
+
+	/** Describe the lag of every backup, in records and ms. */
+	public synchronized String lags() {
+		StringBuilder sb = new StringBuilder();
+		long now = System.nanoTime();
+		for (Backup b : backups) {
+			long lag = next - 1 - b.acked;
+			long ms = 0;
+			if (lag > 0 && b.acked + 1 >= first)
+				ms = (now - times[(int) ((head + b.acked + 1
+					- first) % records.length)]) / 1000000;
+			if (sb.length() > 0) sb.append(", ");
+			sb.append(b.addr).append(" lag ").append(lag)
+			  .append(" records ").append(ms).append(" ms");
+			if (b.down) sb.append(" (down)");
+		}
+		return sb.toString();
+	}
+}
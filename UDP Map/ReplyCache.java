@@ -0,0 +1,153 @@
+/** Cache of recent replies, used to make retried requests idempotent.
+ *
+ *  A client that tags its requests (see MapServer) may send the same
+ *  request again when it gets no reply. The server remembers the reply
+ *  it sent for each (client address, tag) pair for a limited time, and
+ *  answers a retransmitted request with that reply instead of executing
+ *  the request a second time.
+ *
+ *  The cache holds at most a fixed number of entries, and of bytes of
+ *  replies, which may be as long as a message (see Fragments). Entries
+ *  are kept in a FIFO queue in the order they were created, which is
+ *  also the order in which they get old; inserting an entry or its reply
+ *  removes entries from the head of the queue that are too old or in
+ *  excess of the capacity, so eviction costs O(1) per request and needs
+ *  no background thread.
+ */
+
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplyCache {
+	/** Cache entry; reply is null while the request is in progress. */
+	public static class Entry {
+		private final Key key;
+		private final long created;	// time entry was created, in ns
+		private volatile byte[] reply;
+		private boolean evicted;	// guarded by the entry's lock
+
+		private Entry(Key key, long created) {
+			this.key = key; this.created = created;
+		}
+
+		/** Return the cached reply, or null if still in progress. */
+		public byte[] reply() { return reply; }
+	}
+
+	private static class Key {
+		private final SocketAddress client;
+		private final long tag;
+
+		Key(SocketAddress client, long tag) {
+			this.client = client; this.tag = tag;
+		}
+
+		@Override
+		public int hashCode() {
+			return client.hashCode() * 31 + Long.hashCode(tag);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return tag == k.tag && client.equals(k.client);
+		}
+	}
+
+	private final int capacity;	// max number of entries
+	private final long maxBytes;	// max bytes of replies
+	private final long ttl;		// time entries are kept, in ns
+
+	private ConcurrentHashMap<Key, Entry> map = new ConcurrentHashMap<>();
+	private ConcurrentLinkedQueue<Entry> fifo = new ConcurrentLinkedQueue<>();
+	private AtomicInteger size = new AtomicInteger();
+	private AtomicLong bytes = new AtomicLong();	// of the replies kept
+
+	/** Initialize a new ReplyCache.
+	 *  @param capacity is the maximum number of replies kept
+	 *  @param maxBytes is the maximum total length of the replies kept
+	 *  @param ttl is the time a reply is kept, in seconds
+	 */
+	ReplyCache(int capacity, long maxBytes, double ttl) {
+		this.capacity = capacity;
+		this.maxBytes = maxBytes;
+		this.ttl = (long) (ttl * 1000000000);
+	}
+
+	/** Return a new entry for a request, to pass to begin().
+	 *  @param client is the address the request came from
+	 *  @param tag is the tag of the request
+	 */
+	public Entry entry(SocketAddress client, long tag) {
+		return new Entry(new Key(client, tag), System.nanoTime());
+	}
+
+	/** Look up a request, and register it if it is new.
+	 *  @param fresh is a new entry for the request (see entry())
+	 *  @return null if the request is new, in which case the caller must
+	 *  execute it and call complete() with fresh; otherwise the entry of
+	 *  the earlier request, whose reply is null while it is in progress
+	 */
+	public Entry begin(Entry fresh) {
+		long now = fresh.created;
+		Key key = fresh.key;
+		while (true) {
+			Entry e = map.get(key);
+			if (e != null && now - e.created <= ttl) return e;
+			// replace a missing or stale entry, unless another
+			// thread (a retransmission) changed it meanwhile
+			if (e == null ? map.putIfAbsent(key, fresh) == null
+				      : map.replace(key, e, fresh))
+				break;
+		}
+		fifo.add(fresh);
+		size.incrementAndGet();
+		evict(now);
+		return null;
+	}
+
+	/** Record the reply to a request registered by begin(). The entry
+	 *  is the one the request registered, not the one its key may have
+	 *  now: a retransmission of a request running longer than the ttl
+	 *  replaces the entry, and is executed again, with its own entry.
+	 *  @param e is the entry passed to begin()
+	 *  @param reply is the reply (the cache keeps the array)
+	 */
+	public void complete(Entry e, byte[] reply) {
+		synchronized (e) {
+			if (e.evicted) return;
+			byte[] old = e.reply;
+			e.reply = reply;
+			// counted under the lock, for evict() to subtract
+			bytes.addAndGet(reply.length
+					- (old == null ? 0 : old.length));
+		}
+		evict(System.nanoTime());
+	}
+
+	public int size() { return size.get(); }
+
+	/** Return the total length of the replies kept. */
+	public long bytes() { return bytes.get(); }
+
+	/** Remove the entries that are too old or too many. */
+	private void evict(long now) {
+		Entry e;
+		while ((e = fifo.peek()) != null &&
+		       (size.get() > capacity || bytes.get() > maxBytes
+			|| now - e.created > ttl)) {
+			if (!fifo.remove(e)) continue; // removed by another thread
+			size.decrementAndGet();
+			map.remove(e.key, e);
+			synchronized (e) {
+				e.evicted = true;
+				if (e.reply != null)
+					bytes.addAndGet(-e.reply.length);
+			}
+		}
+	}
+}
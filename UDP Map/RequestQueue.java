@@ -0,0 +1,145 @@
+/** Bounded queue of requests between a receiving thread and workers,
+ *  with admission control.
+ *
+ *  Without a queue, a server that cannot keep up leaves the requests in
+ *  the socket buffer until the kernel drops them, and clients only see
+ *  timeouts. With one, the receiving thread takes packets off the
+ *  socket as fast as they arrive, and the server decides which requests
+ *  to serve:
+ *  - a request that arrives when the queue is full is rejected at once
+ *  - a request that has waited too long is shed when a worker takes
+ *    it, following the variant of CoDel (Nichols and Jacobson,
+ *    "Controlling Queue Delay") used by RPC servers (Maurer, "Fail at
+ *    Scale"): the queue is overloaded when the shortest time a request
+ *    spent in it (the sojourn time) during the last interval was above
+ *    target, i.e. when the queue never emptied; a standing queue
+ *    is then the cause of the delay, not a burst. While the queue is
+ *    overloaded, requests that waited more than target are shed;
+ *    otherwise, only those that waited more than interval are.
+ *  A short burst that fills the queue is thus absorbed, but a standing
+ *  queue is not, and the requests that are served wait about target.
+ *  While the queue is overloaded, every low-priority request (such as
+ *  a batch or a scan, which are expensive) is shed as well, so that the
+ *  cheap requests keep being served. Control requests (such as the
+ *  changes streamed by a primary, or those of an operator) are never
+ *  shed, as the server must keep them going when it is overloaded.
+ *
+ *  The requests are preallocated, and recycled with release(), so
+ *  that the queue does not allocate a buffer per packet.
+ */
+
+import java.net.SocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RequestQueue {
+	// Priorities of the requests (see shed())
+	public static final int CONTROL = 0, NORMAL = 1, LOW = 2;
+
+	/** A request received from a client. */
+	public static class Request {
+		public final byte[] buf;	// packet payload is buf[0..len)
+		public int len;
+		public SocketAddress from;	// address of the client
+		long arrival;			// time it was queued (ns)
+
+		Request(int size) { buf = new byte[size]; }
+	}
+
+	private ArrayBlockingQueue<Request> queue, free;
+	private long target, interval;	// CoDel parameters (ns)
+
+	// CoDel state, guarded by this
+	private long intervalEnd = 0;	// end of the current interval
+	private long minSojourn = Long.MAX_VALUE; // during the interval
+	private boolean overloaded = false; // during the last interval
+	private long maxSojourn = 0;	// since the last call of maxSojourn()
+
+	private LongAdder rejected = new LongAdder(), shed = new LongAdder();
+
+	/** Initialize a new RequestQueue.
+	 *  @param capacity is the number of requests the queue can hold
+	 *  @param workers is the number of threads taking requests
+	 *  @param size is the size of the request buffers
+	 *  @param target is the acceptable sojourn time, in ms
+	 *  @param interval is the time the sojourn time may stay above
+	 *  target before requests are shed, in ms
+	 */
+	RequestQueue(int capacity, int workers, int size, double target,
+		     double interval) {
+		queue = new ArrayBlockingQueue<>(capacity);
+		// enough for a full queue, one request per worker, and one
+		// being received
+		int n = capacity + workers + 1;
+		free = new ArrayBlockingQueue<>(n);
+		for (int i = 0; i < n; i++) free.add(new Request(size));
+		this.target = (long) (target * 1000000);
+		this.interval = (long) (interval * 1000000);
+	}
+
+	/** Return a free request, to receive a packet into. */
+	public Request allocate() { return free.poll(); }
+
+	/** Return a request to the free ones. */
+	public void release(Request r) {
+		r.from = null;
+		free.offer(r);
+	}
+
+	/** Queue a request; return false if the queue is full, in which
+	 *  case the request remains the caller's, and is rejected unless
+	 *  its priority is CONTROL (the caller then serves it at once).
+	 */
+	public boolean offer(Request r, int priority) {
+		r.arrival = System.nanoTime();
+		if (queue.offer(r)) return true;
+		if (priority != CONTROL) rejected.increment();
+		return false;
+	}
+
+	/** Take the next request, waiting until there is one. */
+	public Request take() throws InterruptedException {
+		return queue.take();
+	}
+
+	/** Decide whether a request just taken from the queue is to be
+	 *  shed rather than served.
+	 *  @param priority is the priority of the request: CONTROL, NORMAL
+	 *  or LOW
+	 */
+	public synchronized boolean shed(Request r, int priority) {
+		long now = System.nanoTime();
+		long sojourn = now - r.arrival;
+		if (sojourn > maxSojourn) maxSojourn = sojourn;
+
+		// decide if the queue was overloaded at the end of an interval
+		if (now >= intervalEnd) {
+			overloaded = minSojourn > target;
+			minSojourn = Long.MAX_VALUE;
+			intervalEnd = now + interval;
+		}
+		if (sojourn < minSojourn) minSojourn = sojourn;
+
+		if (priority == CONTROL) return false;
+		boolean drop = overloaded ? (priority == LOW || sojourn > target)
+					  : sojourn > interval;
+		if (drop) shed.increment();
+		return drop;
+	}
+
+	/** Return the number of requests in the queue. */
+	public int depth() { return queue.size(); }
+
+	/** Return the number of requests rejected because the queue was full. */
+	public long rejected() { return rejected.sum(); }
+
+	/** Return the number of requests shed because they waited too long. */
+	public long shed() { return shed.sum(); }
+
+	/** Return the longest sojourn time since the last call, in ns. */
+	public synchronized long maxSojourn() {
+		long m = maxSojourn;
+		maxSojourn = 0;
+		return m;
+	}
+}
@@ -0,0 +1,323 @@
+/** Storage engine that can write a point-in-time snapshot of another
+ *  one while it keeps changing, in a compact format or in the format
+ *  of MappedStore.
+ *
+ *  A snapshot walks the pairs of the base store with forEach(), which
+ *  sees a mix of old and new values if the pairs change meanwhile. To
+ *  write the pairs as they were when the snapshot started, every change
+ *  made during the snapshot first saves the pre-image of its pair (the
+ *  old value, or the fact that the key was absent) in a side map, unless
+ *  it has been saved already or the walk has already written the pair
+ *  (copy-on-write). The walk writes the pre-image of a pair instead of
+ *  its current value if there is one, and marks the pair as written;
+ *  at the end, it writes the pre-images of the pairs it did not meet,
+ *  i.e. those removed before it got to them. A change only costs a
+ *  lookup of the old value, and only the first time its key changes
+ *  during a snapshot, so writes are not held up; the price is the
+ *  memory of the side map, which holds a copy of every key written by
+ *  the walk until the snapshot ends.
+ *
+ *  A change takes a lock on its key, and the snapshot starts while
+ *  holding all the locks, so that every change is either entirely
+ *  before it or entirely after it.
+ *
+ *  The deadlines of the pairs (see ExpiringStore, which sits above this
+ *  store) are written with them, as found when the walk writes the pair
+ *  (see setDeadlines), so that a pair put with a TTL still expires after
+ *  the snapshot is loaded.
+ *
+ *  A snapshot file holds, after a magic number, the pairs as
+ *	<key length + 1> <value length> <deadline> <key> <value>
+ *  with the lengths and the deadline (in ms since the epoch, 0 for a
+ *  pair that never expires) as variable-length integers (7 bits per
+ *  byte, low bits first), then a 0 byte, the number of pairs
+ *  (variable-length), and the CRC32 of everything before it. Files of
+ *  older versions, with another magic number, have no deadlines.
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+public class SnapshotStore implements MapStore {
+	/** Visitor for the pairs of a snapshot, with their deadlines. */
+	interface TimedVisitor {
+		void visit(ByteKey key, byte[] value, int off, int len,
+			   long deadline) throws IOException;
+	}
+
+	/** Source of the deadlines of the pairs. */
+	interface Deadlines {
+		/** Return the deadline of key, in ms, or 0 if it has none. */
+		long deadline(ByteKey key);
+	}
+
+	private static final int MAGIC = 0x4d415045; // "MAPE"
+	private static final int OLD_MAGIC = 0x4d415044; // "MAPD", no deadlines
+	// pre-images of a key that was absent, and of a pair already written
+	private static final byte[] ABSENT = new byte[0], WRITTEN = new byte[0];
+
+	private MapStore base;		// store holding the pairs
+	private volatile Deadlines deadlines = key -> 0;
+
+	// locks that make saving a pre-image and changing the pair atomic
+	private final Object[] locks = new Object[64];
+
+	// pre-images of the pairs changed since the snapshot started, or
+	// null if no snapshot is being taken
+	private volatile ConcurrentHashMap<ByteKey, byte[]> before = null;
+	// longest value the base store may hold: those put so far, or
+	// already in it
+	private volatile int longest;
+	private ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(
+						() -> new byte[256]);
+
+	private LongAdder saved = new LongAdder(); // pre-images saved so far
+
+	// held while taking a snapshot, one at a time
+	private final Object snapLock = new Object();
+
+	/** Initialize a new SnapshotStore.
+	 *  @param base is the store holding the pairs
+	 *  @param longest is the length of the longest value in base, which
+	 *  may hold pairs that were not put through this store (such as
+	 *  those of a MappedStore file)
+	 */
+	SnapshotStore(MapStore base, int longest) {
+		this.base = base;
+		this.longest = longest;
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+	}
+
+	/** Initialize a new SnapshotStore, with an empty base store. */
+	SnapshotStore(MapStore base) { this(base, 0); }
+
+	/** Set the source of the deadlines written in the snapshots. */
+	public void setDeadlines(Deadlines deadlines) {
+		this.deadlines = deadlines;
+	}
+
+	private Object lock(ByteKey key) { return locks[key.hashCode() & 63]; }
+
+	public int get(ByteKey key, byte[] out, int pos) {
+		return base.get(key, out, pos);
+	}
+
+	public boolean put(ByteKey key, byte[] value, int off, int len) {
+		if (len > longest) grow(len);
+		synchronized (lock(key)) {
+			save(key);
+			return base.put(key, value, off, len);
+		}
+	}
+
+	public boolean remove(ByteKey key) {
+		synchronized (lock(key)) {
+			save(key);
+			return base.remove(key);
+		}
+	}
+
+	public int size() { return base.size(); }
+
+	public void forEach(Visitor v) throws IOException { base.forEach(v); }
+
+	private synchronized void grow(int len) {
+		if (len > longest) longest = len;
+	}
+
+	/** Save the pre-image of a pair about to change, if a snapshot is
+	 *  being taken; the caller holds the lock of the key.
+	 */
+	private void save(ByteKey key) {
+		ConcurrentHashMap<ByteKey, byte[]> b = before;
+		if (b == null || b.containsKey(key)) return;
+		byte[] buf = scratch.get();
+		if (buf.length < longest) {
+			buf = new byte[longest];
+			scratch.set(buf);
+		}
+		int end = base.get(key, buf, 0);
+		// the walk may have written the pair in the meantime
+		if (b.putIfAbsent(key.copy(), end < 0 ? ABSENT
+				  : Arrays.copyOf(buf, end)) == null)
+			saved.increment();
+	}
+
+	/** Hold all the locks, from locks[i] on, while running r. */
+	private void withLocks(int i, Runnable r) {
+		if (i == locks.length) {
+			r.run();
+			return;
+		}
+		synchronized (locks[i]) { withLocks(i + 1, r); }
+	}
+
+	/** Write a snapshot of the pairs, as they are when it starts, to
+	 *  file f (through a temporary file, renamed when complete). Only
+	 *  one snapshot is taken at a time.
+	 *  @param mapped selects the format: that of MappedStore if true,
+	 *  the compact one described above otherwise
+	 *  @return the number of pairs written
+	 */
+	public long snapshot(File f, boolean mapped) throws IOException {
+		synchronized (snapLock) {
+			File tmp = new File(f.getPath() + ".tmp");
+			long count = mapped ? takeMapped(tmp) : take(tmp);
+			if (!tmp.renameTo(f))
+				throw new IOException("cannot rename " + tmp);
+			return count;
+		}
+	}
+
+	public long snapshot(File f) throws IOException {
+		return snapshot(f, false);
+	}
+
+	private long take(File f) throws IOException {
+		try (FileOutputStream fos = new FileOutputStream(f)) {
+			CheckedOutputStream cos = new CheckedOutputStream(
+				new BufferedOutputStream(fos, 1 << 16),
+				new CRC32());
+			DataOutputStream out = new DataOutputStream(cos);
+			out.writeInt(MAGIC);
+			long count = walk((key, value, off, len, deadline) ->
+				write(out, key, value, off, len, deadline));
+			out.writeByte(0);
+			writeNumber(out, count);
+			out.flush();
+			out.writeInt((int) cos.getChecksum().getValue());
+			out.flush();
+			fos.getFD().sync();
+			return count;
+		}
+	}
+
+	private long takeMapped(File f) throws IOException {
+		try (MappedStore.Writer w = new MappedStore.Writer(f)) {
+			walk(w);
+			return w.finish();
+		}
+	}
+
+	/** Pass the pairs, as they are now, to sink, while they change.
+	 *  @return the number of pairs
+	 */
+	private long walk(TimedVisitor sink) throws IOException {
+		Deadlines d = deadlines;
+		ConcurrentHashMap<ByteKey, byte[]> b = new ConcurrentHashMap<>();
+		withLocks(0, () -> before = b);
+		long[] count = new long[1];
+		try {
+			// 1. The pairs present now, or their pre-images
+			base.forEach((key, value, off, len) -> {
+				byte[] pre = b.putIfAbsent(key.copy(), WRITTEN);
+				if (pre == ABSENT || pre == WRITTEN) return;
+				if (pre != null) {
+					if (!b.replace(key, pre, WRITTEN)) return;
+					value = pre; off = 0; len = pre.length;
+				}
+				sink.visit(key, value, off, len, d.deadline(key));
+				count[0]++;
+			});
+			// 2. The pairs removed before the walk met them
+			for (Map.Entry<ByteKey, byte[]> e : b.entrySet()) {
+				byte[] pre = e.getValue();
+				if (pre == ABSENT || pre == WRITTEN) continue;
+				if (!b.replace(e.getKey(), pre, WRITTEN)) continue;
+				sink.visit(e.getKey(), pre, 0, pre.length,
+					   d.deadline(e.getKey()));
+				count[0]++;
+			}
+		} finally {
+			before = null;
+		}
+		return count[0];
+	}
+
+	private static void write(DataOutputStream out, ByteKey key,
+			byte[] value, int off, int len, long deadline)
+							throws IOException {
+		writeNumber(out, key.length() + 1);
+		writeNumber(out, len);
+		writeNumber(out, deadline);
+		key.writeTo(out);
+		out.write(value, off, len);
+	}
+
+	private static void writeNumber(DataOutputStream out, long n)
+							throws IOException {
+		while ((n & ~0x7fL) != 0) {
+			out.writeByte((int) (n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte((int) n);
+	}
+
+	private static long readNumber(DataInputStream in) throws IOException {
+		long n = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			n |= (long) (b & 0x7f) << shift;
+			if (b < 0x80) return n;
+		}
+		throw new IOException("bad number in snapshot");
+	}
+
+	/** Call v.visit() for every pair of the snapshot file f.
+	 *  @return the number of pairs
+	 *  @throws IOException if the file is damaged, possibly after
+	 *  visiting the pairs before the damage
+	 */
+	public static long read(File f, Visitor v) throws IOException {
+		return read(f, (key, value, off, len, deadline) ->
+			       v.visit(key, value, off, len));
+	}
+
+	/** Call v.visit() for every pair of the snapshot file f, with its
+	 *  deadline (0 if it has none, as in files of older versions).
+	 *  @return the number of pairs
+	 *  @throws IOException if the file is damaged, possibly after
+	 *  visiting the pairs before the damage
+	 */
+	public static long read(File f, TimedVisitor v) throws IOException {
+		try (FileInputStream fis = new FileInputStream(f)) {
+			CheckedInputStream cis = new CheckedInputStream(
+				new BufferedInputStream(fis, 1 << 16),
+				new CRC32());
+			DataInputStream in = new DataInputStream(cis);
+			int magic = in.readInt();
+			if (magic != MAGIC && magic != OLD_MAGIC)
+				throw new IOException("bad snapshot " + f);
+			ByteKey key = new ByteKey();
+			byte[] buf = new byte[256];
+			long count = 0, klen;
+			while ((klen = readNumber(in) - 1) >= 0) {
+				long vlen = readNumber(in);
+				long deadline = magic == MAGIC ? readNumber(in) : 0;
+				if (klen + vlen > Integer.MAX_VALUE - 8)
+					throw new IOException("bad snapshot " + f);
+				if (klen + vlen > buf.length)
+					buf = new byte[(int) (klen + vlen)];
+				in.readFully(buf, 0, (int) (klen + vlen));
+				v.visit(key.set(buf, 0, (int) klen), buf,
+					(int) klen, (int) vlen, deadline);
+				count++;
+			}
+			if (readNumber(in) != count)
+				throw new IOException("bad snapshot " + f);
+			int crc = (int) cis.getChecksum().getValue();
+			if (in.readInt() != crc)
+				throw new IOException("bad checksum in " + f);
+			return count;
+		}
+	}
+
+	/** Return the number of pre-images saved by changes so far. */
+	public long saved() { return saved.sum(); }
+}
@@ -0,0 +1,69 @@
+/** Storage engine that keeps the keys of another one in order.
+ *
+ *  The pairs stay in the base store, which answers gets and puts as
+ *  before; beside it, the keys are kept in a concurrent skip list, so
+ *  that they can be enumerated in order from any point (for scans).
+ *  A put of a new key adds it to the list and a remove deletes it,
+ *  under a lock on the key so that the list and the base store agree.
+ *  The list holds its own copy of every key.
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+public class SortedStore implements MapStore {
+	private MapStore base;		// store holding the pairs
+	private ConcurrentSkipListSet<ByteKey> keys =
+					new ConcurrentSkipListSet<>();
+
+	// locks that make changing a pair and the list atomic
+	private final Object[] locks = new Object[64];
+
+	/** Initialize a new SortedStore.
+	 *  @param base is the store holding the pairs, whose keys (if any,
+	 *  such as those of a MappedStore) are added to the list
+	 */
+	SortedStore(MapStore base) throws IOException {
+		this.base = base;
+		for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+		base.forEach((key, value, off, len) -> keys.add(key.copy()));
+	}
+
+	private Object lock(ByteKey key) { return locks[key.hashCode() & 63]; }
+
+	public int get(ByteKey key, byte[] out, int pos) {
+		return base.get(key, out, pos);
+	}
+
+	public boolean put(ByteKey key, byte[] value, int off, int len) {
+		synchronized (lock(key)) {
+			boolean found = base.put(key, value, off, len);
+			if (!found) keys.add(key.copy());
+			return found;
+		}
+	}
+
+	public boolean remove(ByteKey key) {
+		synchronized (lock(key)) {
+			boolean found = base.remove(key);
+			if (found) keys.remove(key);
+			return found;
+		}
+	}
+
+	public int size() { return base.size(); }
+
+	public void forEach(Visitor v) throws IOException { base.forEach(v); }
+
+	/** Return an iterator over the keys, in order, starting at key.
+	 *  The iterator is weakly consistent: it sees the keys present when
+	 *  it was created, unless they have been removed since, and may or
+	 *  may not see keys added since.
+	 *  @param key is the first key, or the key before the first one
+	 *  @param inclusive is true if key itself is to be returned
+	 */
+	public Iterator<ByteKey> keysFrom(ByteKey key, boolean inclusive) {
+		return keys.tailSet(key, inclusive).iterator();
+	}
+}
@@ -0,0 +1,92 @@
+/** Counters and service time histograms of the requests served by one
+ *  thread.
+ *
+ *  Every worker thread has its own Stats, which only it writes, so
+ *  that counting a request is a few increments of fields no other
+ *  thread writes: there is no atomic operation, no lock and no shared
+ *  cache line in the hot loop. The Stats of all the threads are
+ *  registered when created, and total() adds them up when they are
+ *  asked for. The fields are read without synchronization, so a total
+ *  may miss the last few requests of a thread, which is good enough
+ *  for monitoring.
+ */
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class Stats {
+	public static final int GET = 0, PUT = 1, REMOVE = 2, SCAN = 3,
+				OTHER = 4;
+	public static final String[] NAMES = {
+		"get", "put", "remove", "scan", "other"
+	};
+
+	private static CopyOnWriteArrayList<Stats> all =
+					new CopyOnWriteArrayList<>();
+
+	private long[] count = new long[NAMES.length];	// requests per op
+	private Histogram[] time = new Histogram[NAMES.length]; // in ns
+	private long hits = 0, misses = 0;		// of gets
+	private long bytesIn = 0, bytesOut = 0;		// packet payloads
+
+	private Stats() {
+		for (int i = 0; i < time.length; i++) time[i] = new Histogram();
+	}
+
+	/** Create the Stats of a thread, and register it for total(). */
+	public static Stats register() {
+		Stats s = new Stats();
+		all.add(s);
+		return s;
+	}
+
+	/** Count a request of kind op, served in ns nanoseconds. */
+	public void record(int op, long ns) {
+		count[op]++;
+		time[op].record(ns);
+	}
+
+	/** Count a get that found its key (hit) or not. */
+	public void get(boolean hit) {
+		if (hit) hits++; else misses++;
+	}
+
+	/** Count a packet received, and the reply sent (-1 if none). */
+	public void packet(int in, int out) {
+		bytesIn += in;
+		if (out > 0) bytesOut += out;
+	}
+
+	/** Return the Stats of all the threads, added up. */
+	public static Stats total() {
+		Stats t = new Stats();
+		for (Stats s : all) {
+			for (int i = 0; i < NAMES.length; i++) {
+				t.count[i] += s.count[i];
+				t.time[i].add(s.time[i]);
+			}
+			t.hits += s.hits; t.misses += s.misses;
+			t.bytesIn += s.bytesIn; t.bytesOut += s.bytesOut;
+		}
+		return t;
+	}
+
+	/** Return the number of requests served by all the threads. */
+	public static long requests() {
+		long n = 0;
+		for (Stats s : all)
+			for (long c : s.count) n += c;
+		return n;
+	}
+
+	public long count(int op) { return count[op]; }
+
+	public Histogram time(int op) { return time[op]; }
+
+	public long hits() { return hits; }
+
+	public long misses() { return misses; }
+
+	public long bytesIn() { return bytesIn; }
+
+	public long bytesOut() { return bytesOut; }
+}
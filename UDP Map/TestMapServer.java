@@ -0,0 +1,53 @@
+/** Test the request parsing of MapServer.
+ *  usage: TestMapServer
+ *
+ *  Runs requests through MapServer.process(), on an empty map, and
+ *  checks that every reply is the one the original String-based server
+ *  (which split the request on ':') gave. Prints every request that
+ *  gets another reply, and exits with status 1 if there is any.
+ */
+
+import java.nio.charset.StandardCharsets;
+
+public class TestMapServer {
+	// Requests, in order, and their expected replies
+	private static final String[][] CASES = {
+		{ "get:k", "no match" },
+		{ "put:k:v", "Ok" },
+		{ "get:k", "ok:v" },
+		{ "put:k:w", "updated:k" },
+		{ "get:k:", "ok:w" },
+		{ "remove:k", "Ok" },
+		{ "remove:k", "no match" },
+		// an empty key, which cannot be read back
+		{ "put::v", "Ok" },
+		{ "get:", "Error:unrecognizable input:get:" },
+		{ "get::", "Error:unrecognizable input:get::" },
+		{ "remove:", "Error:unrecognizable input:remove:" },
+		{ "remove::", "Error:unrecognizable input:remove::" },
+		{ "get", "Error:unrecognizable input:get" },
+		{ "get:a:b", "Error:unrecognizable input:get:a:b" },
+		{ "put:k", "Error:unrecognizable input:put:k" },
+		{ "", "Error:unrecognizable input:" },
+	};
+
+	public static void main(String[] args) throws Exception {
+		byte[] out = new byte[MapServer.MAX_REPLY];
+		ByteKey probe = new ByteKey();
+		int failed = 0;
+		for (String[] c : CASES) {
+			byte[] in = c[0].getBytes(StandardCharsets.US_ASCII);
+			int n = MapServer.process(in, 0, in.length, out, 0, probe);
+			String reply = new String(out, 0, n,
+						  StandardCharsets.US_ASCII);
+			if (!reply.equals(c[1])) {
+				System.out.println("FAILED " + c[0] + ": got "
+					+ reply + ", expected " + c[1]);
+				failed++;
+			}
+		}
+		System.out.println((CASES.length - failed) + " of " + CASES.length
+				   + " requests passed");
+		if (failed > 0) System.exit(1);
+	}
+}
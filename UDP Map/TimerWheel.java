@@ -0,0 +1,120 @@
+/** Hierarchical timer wheel.
+ *
+ *  Schedules a large number of items to expire at given times, at a
+ *  cost of O(1) per item scheduled and O(1) per tick, independent of
+ *  the number of items. Time is divided in ticks. The wheel has four
+ *  levels of 256 slots; level 0 holds the items due in the next 256
+ *  ticks, one slot per tick, level 1 the items due in the next 256^2
+ *  ticks, one slot per 256 ticks, and so on. When level 0 has gone all
+ *  the way round, the next slot of level 1 is emptied and its items are
+ *  spread over level 0, and similarly for the higher levels.
+ *
+ *  Items are handed to the handler when the tick they are due in has
+ *  passed, i.e. at most one tick late (plus the time it takes to call
+ *  advance()). An item is never removed from the wheel; if it is no
+ *  longer relevant when it expires, the handler should ignore it.
+ */
+
+import java.util.ArrayList;
+
+public class TimerWheel<T> {
+	/** Receiver of the expired items. */
+	public interface Handler<T> {
+		void expired(T item, long deadline);
+	}
+
+	private static final int BITS = 8;
+	private static final int SLOTS = 1 << BITS;
+	private static final int LEVELS = 4;
+
+	private static class Timer<T> {
+		T item;
+		long deadline;		// in ms
+		Timer<T> next;		// next timer in the same slot
+	}
+
+	private final long tick;	// length of a tick in ms
+	private final Handler<T> handler;
+	private Timer<T>[][] wheel;	// wheel[level][slot] is a list
+	private long cur;		// last tick that was processed
+	private int count = 0;		// number of scheduled items
+
+	/** Initialize a new TimerWheel.
+	 *  @param tick is the length of a tick, in ms
+	 *  @param now is the current time, in ms
+	 *  @param handler receives the items when they expire
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	TimerWheel(long tick, long now, Handler<T> handler) {
+		this.tick = tick; this.handler = handler;
+		wheel = new Timer[LEVELS][SLOTS];
+		cur = now / tick;
+	}
+
+	/** Schedule an item.
+	 *  @param item is the item
+	 *  @param deadline is the time it expires, in ms
+	 */
+	public synchronized void schedule(T item, long deadline) {
+		Timer<T> t = new Timer<>();
+		t.item = item; t.deadline = deadline;
+		place(t);
+		count++;
+	}
+
+	/** Put a timer in the slot for its deadline. */
+	private void place(Timer<T> t) {
+		long base = cur + 1;	// next tick to be processed
+		long d = (t.deadline + tick - 1) / tick; // tick it is due in
+		if (d < base) d = base;
+		long delta = d - base;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1)))
+			level++;
+		if (delta >= 1L << (BITS * LEVELS)) // beyond the last level
+			d = base + (1L << (BITS * LEVELS)) - 1;
+		int slot = (int) (d >>> (BITS * level)) & (SLOTS - 1);
+		t.next = wheel[level][slot];
+		wheel[level][slot] = t;
+	}
+
+	/** Process all the ticks that have passed, handing the expired items
+	 *  to the handler (without holding the lock on the wheel).
+	 *  @param now is the current time, in ms
+	 */
+	public void advance(long now) {
+		ArrayList<Timer<T>> due = new ArrayList<>();
+		while (true) {
+			synchronized (this) {
+				if (cur >= now / tick) break;
+				long n = cur + 1; // tick to process
+				// move the items of the higher levels down, when
+				// the lower level has gone all the way round
+				for (int level = LEVELS - 1; level > 0; level--) {
+					long mask = (1L << (BITS * level)) - 1;
+					if ((n & mask) != 0) continue;
+					int slot = (int) (n >>> (BITS * level))
+						   & (SLOTS - 1);
+					Timer<T> t = wheel[level][slot];
+					wheel[level][slot] = null;
+					while (t != null) {
+						Timer<T> next = t.next;
+						place(t);
+						t = next;
+					}
+				}
+				int slot = (int) n & (SLOTS - 1);
+				for (Timer<T> t = wheel[0][slot]; t != null; t = t.next)
+					due.add(t);
+				wheel[0][slot] = null;
+				count -= due.size();
+				cur = n;
+			}
+			for (Timer<T> t : due) handler.expired(t.item, t.deadline);
+			due.clear();
+		}
+	}
+
+	/** Return the number of items scheduled. */
+	public synchronized int size() { return count; }
+}
@@ -0,0 +1,166 @@
+/** Keys watched by clients that cache their values, and the
+ *  invalidations sent to them when the keys change.
+ *
+ *  A client that caches the value of a key gets it with a watch request,
+ *  which registers the client's address as watching the key for the
+ *  duration of a lease. When the key is put or removed (by a client, or
+ *  because it expired or was evicted), every client watching it is sent
+ *  an invalidation, "inval:<key>", and the watches of the key end (a
+ *  client watches it again with its next get of the key). No
+ *  invalidation is sent when a lease is over: a client must not keep a
+ *  value longer than the lease, which also makes a lost invalidation
+ *  leave its cache stale for at most a lease.
+ *
+ *  The number of watches is bounded: when it reaches the limit, the
+ *  oldest watch ends early, and its client is sent an invalidation as
+ *  if the key had changed.
+ *
+ *  A watch is registered before the value is read, and an invalidation
+ *  is sent after the change is made, so a client is sent an invalidation
+ *  for every change it might not have seen. Such an invalidation may
+ *  overtake the reply to the watch, so a client should not cache a value
+ *  that was invalidated while it was being fetched.
+ */
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Watches {
+	private static final byte[] INVAL =
+		"inval:".getBytes(StandardCharsets.US_ASCII);
+
+	/** Sends a packet to a client. */
+	public interface Sender {
+		void send(byte[] buf, int len, SocketAddress to)
+							throws IOException;
+	}
+
+	/** A client watching a key. */
+	private static class Watch {
+		final ByteKey key;
+		final SocketAddress addr;
+		long deadline;		// end of the lease (ms)
+
+		Watch(ByteKey key, SocketAddress addr) {
+			this.key = key; this.addr = addr;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Watch && ((Watch) o).key.equals(key)
+				&& ((Watch) o).addr.equals(addr);
+		}
+
+		@Override
+		public int hashCode() { return Objects.hash(key, addr); }
+	}
+
+	// watches of every key, read without a lock; changed under this
+	private ConcurrentHashMap<ByteKey, ArrayList<Watch>> byKey =
+						new ConcurrentHashMap<>();
+	// all the watches, oldest lease first; guarded by this
+	private LinkedHashMap<Watch, Watch> leases = new LinkedHashMap<>();
+	private int max;		// maximum number of watches
+	private long lease;		// duration of a lease (ms)
+	private volatile Sender sender;
+
+	private LongAdder sent = new LongAdder();
+
+	/** Initialize a new Watches.
+	 *  @param max is the maximum number of watches
+	 *  @param lease is the duration of a watch, in ms
+	 */
+	Watches(int max, long lease) {
+		this.max = max; this.lease = lease;
+	}
+
+	/** Set the sender of the invalidations; until then, none is sent. */
+	public void setSender(Sender sender) { this.sender = sender; }
+
+	/** Register addr as watching key, or renew its lease. */
+	public void watch(ByteKey key, SocketAddress addr) {
+		ArrayList<Watch> evicted = new ArrayList<>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			expire(now);
+			Watch w = leases.remove(new Watch(key, addr));
+			if (w == null) {
+				w = new Watch(key.copy(), addr);
+				byKey.computeIfAbsent(w.key, k -> new ArrayList<>())
+				     .add(w);
+			}
+			w.deadline = now + lease;
+			leases.put(w, w);
+			Iterator<Watch> it = leases.keySet().iterator();
+			while (leases.size() > max) {
+				Watch old = it.next();
+				it.remove();
+				unlink(old);
+				evicted.add(old);
+			}
+		}
+		for (Watch w : evicted) invalidate(w.key, w.addr);
+	}
+
+	/** End the watches of key, which has just changed, and send their
+	 *  clients an invalidation.
+	 */
+	public void changed(ByteKey key) {
+		if (!byKey.containsKey(key)) return;
+		ArrayList<Watch> list;
+		synchronized (this) {
+			list = byKey.remove(key);
+			if (list == null) return;
+			for (Watch w : list) leases.remove(w);
+		}
+		long now = System.currentTimeMillis();
+		for (Watch w : list)
+			if (w.deadline > now) invalidate(w.key, w.addr);
+	}
+
+	/** End the watches whose lease is over; the caller holds the lock. */
+	private void expire(long now) {
+		Iterator<Watch> it = leases.keySet().iterator();
+		while (it.hasNext()) {
+			Watch w = it.next();
+			if (w.deadline > now) break;
+			it.remove();
+			unlink(w);
+		}
+	}
+
+	/** Remove a watch from byKey; the caller holds the lock. */
+	private void unlink(Watch w) {
+		ArrayList<Watch> list = byKey.get(w.key);
+		if (list == null) return;
+		list.remove(w);
+		if (list.isEmpty()) byKey.remove(w.key);
+	}
+
+	private void invalidate(ByteKey key, SocketAddress addr) {
+		Sender s = sender;
+		if (s == null) return;
+		byte[] buf = new byte[INVAL.length + key.length()];
+		System.arraycopy(INVAL, 0, buf, 0, INVAL.length);
+		key.copyTo(buf, INVAL.length);
+		try {
+			s.send(buf, buf.length, addr);
+			sent.increment();
+		} catch(IOException e) {
+			System.err.println("Watches:invalidate: " + e);
+		}
+	}
+
+	/** Return the number of watches. */
+	public synchronized int size() { return leases.size(); }
+
+	/** Return the number of invalidations sent so far. */
+	public long sent() { return sent.sum(); }
+}
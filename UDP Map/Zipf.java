@@ -0,0 +1,44 @@
+/** Generator of zipfian distributed integers in [0,n).
+ *
+ *  Value i is drawn with a probability proportional to 1/(i+1)^theta,
+ *  so small values are "hot". This uses the method of Gray et al.
+ *  ("Quickly generating billion-record synthetic databases"), which
+ *  takes O(n) time once, in the constructor, and O(1) time per value.
+ */
+
+import java.util.Random;
+
+public class Zipf {
+	private int n;
+	private double theta, alpha, zetan, eta;
+	private Random rand;
+
+	/** Initialize a new generator.
+	 *  @param n is the number of distinct values
+	 *  @param theta is the skew (0.99 is a common choice)
+	 *  @param rand is the source of uniform random numbers
+	 */
+	Zipf(int n, double theta, Random rand) {
+		this.n = n; this.theta = theta; this.rand = rand;
+		double zeta2 = zeta(2, theta);
+		zetan = zeta(n, theta);
+		alpha = 1.0 / (1.0 - theta);
+		eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+	}
+
+	private static double zeta(int n, double theta) {
+		double sum = 0;
+		for (int i = 1; i <= n; i++) sum += 1 / Math.pow(i, theta);
+		return sum;
+	}
+
+	/** Return the next value. */
+	public int next() {
+		double u = rand.nextDouble();
+		double uz = u * zetan;
+		if (uz < 1.0) return 0;
+		if (uz < 1.0 + Math.pow(0.5, theta)) return 1;
+		int v = (int) (n * Math.pow(eta * u - eta + 1, alpha));
+		return Math.min(v, n - 1);
+	}
+}